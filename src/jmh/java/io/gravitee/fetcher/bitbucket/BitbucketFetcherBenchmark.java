@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import io.gravitee.fetcher.api.Resource;
+import io.vertx.core.Vertx;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Benchmarks {@link BitbucketFetcher#fetch()} against a local WireMock server, over plain HTTP and TLS, for small and
+ * multi-megabyte files.
+ * <p>
+ * Forks, warmup and measurement iterations are fixed here so that results of different releases can be compared. Run with
+ * {@code mvn -Pbenchmark verify}, which also enables the GC profiler and writes the results to
+ * {@code target/jmh-result.json}.
+ *
+ * @author GraviteeSource Team
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class BitbucketFetcherBenchmark {
+
+    private static final String SRC = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({ "http", "https" })
+        public String scheme;
+
+        @Param({ "1024", "4194304" })
+        public int bodySize;
+
+        private WireMockServer wiremock;
+        private Vertx vertx;
+
+        @Setup(Level.Trial)
+        public void start() {
+            wiremock = new WireMockServer(wireMockConfig().dynamicPort().dynamicHttpsPort().containerThreads(300));
+            wiremock.start();
+            final byte[] body = new byte[bodySize];
+            Arrays.fill(body, (byte) 'a');
+            wiremock.stubFor(get(urlPathMatching(SRC + "file(-[0-9]+)?")).willReturn(aResponse().withStatus(200).withBody(body)));
+            vertx = Vertx.vertx();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            BitbucketHttpClientRegistry.closeAll();
+            vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            wiremock.stop();
+        }
+
+        BitbucketFetcher fetcher() {
+            return fetcher("file");
+        }
+
+        BitbucketFetcher fetcher(String filepath) {
+            final int port = "https".equals(scheme) ? wiremock.httpsPort() : wiremock.port();
+            final BitbucketFetcherConfiguration config = new BitbucketFetcherConfiguration();
+            config.setFilepath(filepath);
+            config.setUsername("MyUserName");
+            config.setBitbucketUrl(scheme + "://localhost:" + port + "/2.0");
+            config.setBranchOrTag("MyBranch");
+            config.setRepository("MyRepo");
+            final BitbucketFetcher fetcher = new BitbucketFetcher(config);
+            ReflectionTestUtils.setField(fetcher, "httpClientTimeout", 30_000);
+            ReflectionTestUtils.setField(fetcher, "sslTrustAll", true);
+            ReflectionTestUtils.setField(fetcher, "vertx", vertx);
+            return fetcher;
+        }
+    }
+
+    /** {@code cold} closes the shared HTTP clients before each fetch, so that every fetch opens a new connection. */
+    @State(Scope.Benchmark)
+    public static class Client {
+
+        @Param({ "warm", "cold" })
+        public String client;
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            if ("cold".equals(client)) {
+                BitbucketHttpClientRegistry.closeAll();
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FanOut {
+
+        @Param({ "1", "16", "256" })
+        public int fetchers;
+    }
+
+    @Benchmark
+    public void fetch(Server server, Client client, Blackhole blackhole) throws Exception {
+        blackhole.consume(server.fetcher().fetch().getContent().readAllBytes());
+    }
+
+    /** Fetches {@code fetchers} different files concurrently, each one with its own request over the warm HTTP client. */
+    @Benchmark
+    public void fanOut(Server server, FanOut fanOut, Blackhole blackhole) throws Exception {
+        final CompletableFuture<?>[] fetches = new CompletableFuture<?>[fanOut.fetchers];
+        for (int i = 0; i < fetches.length; i++) {
+            fetches[i] = server.fetcher("file-" + i).fetchAsync().toCompletableFuture();
+        }
+        consumeAll(fetches, blackhole);
+    }
+
+    /** Fetches the same file with {@code fetchers} concurrent fetchers, which share a single request. */
+    @Benchmark
+    public void coalesced(Server server, FanOut fanOut, Blackhole blackhole) throws Exception {
+        final CompletableFuture<?>[] fetches = new CompletableFuture<?>[fanOut.fetchers];
+        for (int i = 0; i < fetches.length; i++) {
+            fetches[i] = server.fetcher().fetchAsync().toCompletableFuture();
+        }
+        consumeAll(fetches, blackhole);
+    }
+
+    private static void consumeAll(CompletableFuture<?>[] fetches, Blackhole blackhole) throws Exception {
+        CompletableFuture.allOf(fetches).get(60, TimeUnit.SECONDS);
+        for (CompletableFuture<?> fetch : fetches) {
+            blackhole.consume(((Resource) fetch.get()).getContent().readAllBytes());
+        }
+    }
+}
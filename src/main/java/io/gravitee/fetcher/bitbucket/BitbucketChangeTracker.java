@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide record of when the content of each file last changed, used to poll stable files less often than files that
+ * change frequently.
+ * <p>
+ * Each time a file is actually requested from Bitbucket, its polling interval is reset to the cron interval if its content
+ * changed, and doubled (up to the maximum interval) otherwise. The content last returned for each file is tracked
+ * separately, as most fetches are served from a cache.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketChangeTracker {
+
+    private static final BitbucketChangeTracker SHARED = new BitbucketChangeTracker();
+
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+    private final Map<String, String> delivered = new ConcurrentHashMap<>();
+
+    static BitbucketChangeTracker shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records the content of a file just obtained from Bitbucket.
+     *
+     * @param hash hash of the content
+     * @param minInterval interval of the cron scheduling the fetches of the file
+     * @param maxInterval interval never exceeded, however stable the file is
+     * @return the polling schedule of the file
+     */
+    Schedule observe(String key, String hash, long minInterval, long maxInterval, long now) {
+        return histories
+            .compute(key, (k, previous) -> {
+                if (previous == null) {
+                    return new History(hash, now, new Schedule(minInterval, "first fetch"));
+                }
+                if (!previous.hash().equals(hash)) {
+                    return new History(hash, now, new Schedule(minInterval, "changed since the previous fetch"));
+                }
+                final long interval = Math.max(minInterval, Math.min(maxInterval, previous.schedule().interval() * 2));
+                final String reason = "unchanged since " + Instant.ofEpochMilli(previous.changedAt());
+                return new History(hash, previous.changedAt(), new Schedule(interval, reason));
+            })
+            .schedule();
+    }
+
+    /** Returns the polling schedule of the file, {@code null} if it has never been observed. */
+    Schedule schedule(String key) {
+        final History history = histories.get(key);
+        return history == null ? null : history.schedule();
+    }
+
+    /**
+     * Records the content of a file returned by a fetch.
+     *
+     * @param key the content URL of the file at the configured ref and the credentials fingerprint
+     * @return the hash of the content previously returned for the file, {@code null} if none
+     */
+    String deliver(String key, String hash) {
+        return delivered.put(key, hash);
+    }
+
+    void clear() {
+        histories.clear();
+        delivered.clear();
+    }
+
+    /**
+     * @param interval the effective polling interval of the file in milliseconds
+     * @param reason why this interval has been chosen
+     */
+    record Schedule(long interval, String reason) {}
+
+    private record History(String hash, long changedAt, Schedule schedule) {}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.gravitee.fetcher.api.FetcherException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.CustomLog;
+
+/**
+ * Process-wide circuit breakers of the requests sent to Bitbucket, one per host and workspace, so that fetches fail fast
+ * during an outage instead of each waiting for the request timeout.
+ * <p>
+ * A circuit opens when, over its last {@code windowSize} requests, the rate of failed requests (no response or a
+ * {@code 5xx} status) or of slow requests (response headers received after {@code slowCallDuration}) reaches its threshold.
+ * Requests are refused while it is open. After {@code openDuration}, it lets {@code halfOpenCalls} probe requests through:
+ * it closes if they all succeed in time, and opens again as soon as one of them does not.
+ *
+ * @author GraviteeSource Team
+ */
+@CustomLog
+final class BitbucketCircuitBreaker {
+
+    private static final BitbucketCircuitBreaker SHARED = new BitbucketCircuitBreaker();
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    static BitbucketCircuitBreaker shared() {
+        return SHARED;
+    }
+
+    /**
+     * Asks the circuit of the host and workspace for a request slot.
+     *
+     * @return the permit of the request, to complete once it has been answered or has failed
+     * @throws CircuitOpenException if the circuit is open
+     */
+    Permit acquire(String host, String workspace, Thresholds thresholds) {
+        final Circuit circuit = circuits.computeIfAbsent(host + '/' + workspace, k -> new Circuit(host, workspace));
+        if (!circuit.tryAcquire(thresholds, System.currentTimeMillis())) {
+            throw new CircuitOpenException(host, workspace);
+        }
+        return new Permit(circuit, thresholds, System.currentTimeMillis());
+    }
+
+    /** Returns the state of the circuit of the host and workspace, {@code CLOSED} if no request has been sent yet. */
+    State state(String host, String workspace) {
+        final Circuit circuit = circuits.get(host + '/' + workspace);
+        return circuit == null ? State.CLOSED : circuit.state();
+    }
+
+    void clear() {
+        circuits.clear();
+    }
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    /**
+     * @param windowSize number of the last requests the rates are computed over, at least half of them are needed
+     * @param failureRateThreshold percentage of failed requests opening the circuit
+     * @param slowCallDuration time in milliseconds after which a request is slow
+     * @param slowCallRateThreshold percentage of slow requests opening the circuit
+     * @param openDuration time in milliseconds requests are refused before probing Bitbucket again
+     * @param halfOpenCalls number of probe requests closing the circuit when they all succeed
+     */
+    record Thresholds(
+        int windowSize,
+        int failureRateThreshold,
+        long slowCallDuration,
+        int slowCallRateThreshold,
+        long openDuration,
+        int halfOpenCalls
+    ) {}
+
+    /** Failure of a request refused because its circuit is open. */
+    static final class CircuitOpenException extends FetcherException {
+
+        CircuitOpenException(String host, String workspace) {
+            super("Bitbucket circuit of " + host + '/' + workspace + " is open, request not sent", null);
+        }
+    }
+
+    /** A request let through by a circuit, whose outcome is recorded once. */
+    static final class Permit {
+
+        private final Circuit circuit;
+        private final Thresholds thresholds;
+        private final long start;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Permit(Circuit circuit, Thresholds thresholds, long start) {
+            this.circuit = circuit;
+            this.thresholds = thresholds;
+            this.start = start;
+        }
+
+        /** Records that the response headers have been received. */
+        void responded(int status) {
+            complete(status >= 500);
+        }
+
+        /** Records that no response has been received. */
+        void failed() {
+            complete(true);
+        }
+
+        private void complete(boolean failure) {
+            if (completed.compareAndSet(false, true)) {
+                final long now = System.currentTimeMillis();
+                circuit.record(failure, now - start >= thresholds.slowCallDuration(), thresholds, now);
+            }
+        }
+    }
+
+    private static final class Circuit {
+
+        private final String host;
+        private final String workspace;
+
+        private State state = State.CLOSED;
+        /** Outcomes of the last requests, as a ring: bit 0 set for a failure, bit 1 for a slow request. */
+        private byte[] outcomes = new byte[0];
+        private int recorded;
+        private int next;
+        private int failures;
+        private int slowCalls;
+        private long openedAt;
+        private int probes;
+        private int probeSuccesses;
+
+        private Circuit(String host, String workspace) {
+            this.host = host;
+            this.workspace = workspace;
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        synchronized boolean tryAcquire(Thresholds thresholds, long now) {
+            if (state == State.OPEN && now - openedAt >= thresholds.openDuration()) {
+                transition(State.HALF_OPEN, now);
+            }
+            return switch (state) {
+                case CLOSED -> true;
+                case OPEN -> false;
+                case HALF_OPEN -> {
+                    if (probes >= thresholds.halfOpenCalls()) {
+                        yield false;
+                    }
+                    probes++;
+                    yield true;
+                }
+            };
+        }
+
+        synchronized void record(boolean failure, boolean slow, Thresholds thresholds, long now) {
+            if (state == State.HALF_OPEN) {
+                if (failure || slow) {
+                    transition(State.OPEN, now);
+                } else if (++probeSuccesses >= thresholds.halfOpenCalls()) {
+                    transition(State.CLOSED, now);
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                // Sent before the circuit opened
+                return;
+            }
+
+            if (outcomes.length != Math.max(1, thresholds.windowSize())) {
+                reset(thresholds.windowSize());
+            }
+            if (recorded == outcomes.length) {
+                failures -= outcomes[next] & 1;
+                slowCalls -= (outcomes[next] >> 1) & 1;
+            } else {
+                recorded++;
+            }
+            outcomes[next] = (byte) ((failure ? 1 : 0) | (slow ? 2 : 0));
+            next = (next + 1) % outcomes.length;
+            failures += failure ? 1 : 0;
+            slowCalls += slow ? 1 : 0;
+
+            if (
+                recorded >= Math.max(1, outcomes.length / 2) &&
+                (failures * 100 >= thresholds.failureRateThreshold() * recorded ||
+                    slowCalls * 100 >= thresholds.slowCallRateThreshold() * recorded)
+            ) {
+                transition(State.OPEN, now);
+            }
+        }
+
+        private void transition(State to, long now) {
+            final State from = state;
+            state = to;
+            switch (to) {
+                case OPEN -> {
+                    openedAt = now;
+                    log.warn("Bitbucket circuit of {}/{} is open, requests are refused until it is probed again", host, workspace);
+                }
+                case HALF_OPEN -> {
+                    probes = 0;
+                    probeSuccesses = 0;
+                }
+                case CLOSED -> {
+                    reset(outcomes.length);
+                    log.info("Bitbucket circuit of {}/{} is closed again", host, workspace);
+                }
+            }
+            BitbucketMetrics.shared().circuitTransition(host, workspace, from, to);
+        }
+
+        private void reset(int windowSize) {
+            outcomes = new byte[Math.max(1, windowSize)];
+            recorded = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache of the commit hash a branch or tag points to. Resolutions are kept for a short TTL so that all the
+ * pages fetched from the same ref during a refresh share a single lookup, and concurrent lookups of the same ref are
+ * coalesced.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketCommitResolver {
+
+    private static final BitbucketCommitResolver SHARED = new BitbucketCommitResolver();
+
+    private final Map<String, Resolution> resolutions = new ConcurrentHashMap<>();
+    private final SingleFlight<String> lookups = new SingleFlight<>();
+
+    static BitbucketCommitResolver shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the commit cached for the key if it was resolved less than {@code ttl} milliseconds ago, otherwise runs
+     * {@code lookup} (or joins the lookup already in flight) and caches its result.
+     */
+    Future<String> resolve(String key, long ttl, Supplier<Future<String>> lookup) {
+        Resolution resolution = resolutions.get(key);
+        if (resolution != null && System.currentTimeMillis() - resolution.resolvedAt() < ttl) {
+            return Future.succeededFuture(resolution.commit());
+        }
+        // The resolution is stored before the lookup leaves the in-flight map, so no caller can miss both
+        return lookups.run(key, () ->
+            lookup.get().onSuccess(commit -> resolutions.put(key, new Resolution(commit, System.currentTimeMillis())))
+        );
+    }
+
+    void invalidate(String key) {
+        resolutions.remove(key);
+    }
+
+    /**
+     * Expires the resolutions whose key matches, so the next lookups of these refs go to Bitbucket. Their commits are still
+     * returned by {@link #lastResolved(String)}.
+     */
+    void invalidateIf(Predicate<String> key) {
+        resolutions.replaceAll((k, resolution) -> key.test(k) ? new Resolution(resolution.commit(), 0) : resolution);
+    }
+
+    /** Returns the commit last resolved for the key however long ago, {@code null} if there is none. */
+    String lastResolved(String key) {
+        final Resolution resolution = resolutions.get(key);
+        return resolution == null ? null : resolution.commit();
+    }
+
+    void clear() {
+        resolutions.clear();
+    }
+
+    private record Resolution(String commit, long resolvedAt) {}
+}
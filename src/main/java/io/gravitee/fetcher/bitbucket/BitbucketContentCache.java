@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Process-wide cache of the content fetched from Bitbucket, keyed by request URL.
+ * <p>
+ * An entry younger than the configured TTL is served without contacting Bitbucket, provided it was fetched with the same
+ * credentials. Older entries are kept so the next fetch can be sent as a conditional request and served from memory when
+ * Bitbucket answers {@code 304 Not Modified}. The least recently used entries are dropped once {@code maxEntries} or
+ * {@code maxSize} (total content bytes) is exceeded.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketContentCache {
+
+    private static final BitbucketContentCache SHARED = new BitbucketContentCache(1000, 64L * 1024 * 1024);
+
+    /** Access-ordered, guarded by {@code this}. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile int maxEntries;
+    private volatile long maxSize;
+    /** Whether the limits of the node have been applied, written while holding {@code this}. */
+    private volatile boolean configured;
+    private long size;
+
+    BitbucketContentCache(int maxEntries, long maxSize) {
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    static BitbucketContentCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the shared cache, applying the given limits if it has not been configured yet: limits are node settings, the
+     * same for every fetcher, so they are only applied once instead of on every fetch.
+     */
+    static BitbucketContentCache shared(int maxEntries, long maxSize) {
+        if (!SHARED.configured) {
+            synchronized (SHARED) {
+                if (!SHARED.configured) {
+                    SHARED.maxEntries = maxEntries;
+                    SHARED.maxSize = maxSize;
+                    SHARED.configured = true;
+                }
+            }
+        }
+        return SHARED;
+    }
+
+    synchronized CachedContent get(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.content;
+    }
+
+    /**
+     * Returns the content cached for the key if it was fetched with the same credentials, whatever its age, {@code null}
+     * otherwise. Used to fall back to or compare with previous content: not counted as a hit or a miss.
+     */
+    synchronized CachedContent peek(String key, String credentials) {
+        Entry entry = entries.get(key);
+        return entry != null && Objects.equals(entry.credentials, credentials) ? entry.content : null;
+    }
+
+    /**
+     * Returns the content cached for the key if it is younger than {@code ttl} and was fetched with the same credentials,
+     * {@code null} otherwise. Counts as a hit or a miss.
+     */
+    synchronized CachedContent getFresh(String key, String credentials, long ttl) {
+        Entry entry = entries.get(key);
+        if (entry != null && Objects.equals(entry.credentials, credentials) && entry.content.isFresh(ttl, System.currentTimeMillis())) {
+            hits.increment();
+            return entry.content;
+        }
+        misses.increment();
+        return null;
+    }
+
+    synchronized void put(String key, String credentials, CachedContent content) {
+        Entry previous = entries.put(key, new Entry(content, credentials));
+        if (previous != null) {
+            size -= previous.content.content().length;
+        }
+        size += content.content().length;
+        evict();
+    }
+
+    synchronized void invalidate(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.content.content().length;
+        }
+    }
+
+    /** Removes the entries whose key matches, returns the number of entries removed. */
+    synchronized int invalidateIf(Predicate<String> key) {
+        int removed = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (key.test(entry.getKey())) {
+                iterator.remove();
+                size -= entry.getValue().content.content().length;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Removes all the entries, the limits being applied again on the next configured use. */
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+        configured = false;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long weight() {
+        return size;
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long evictionCount() {
+        return evictions.sum();
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || size > maxSize) && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.content.content().length;
+            evictions.increment();
+        }
+    }
+
+    private record Entry(CachedContent content, String credentials) {}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.CustomLog;
+
+/**
+ * Process-wide cache of the addresses of the Bitbucket hosts, so that requests do not pay a DNS lookup each time the
+ * resolver's own cache expires.
+ * <p>
+ * All the addresses of a host are kept for a TTL and refreshed by a single lookup, run on a worker thread. Requests are
+ * sent to the current address of the host until connecting to it fails, requests then move on to the next address. When a
+ * refresh fails, the previous addresses keep being used: a DNS outage does not turn into a Bitbucket outage.
+ *
+ * @author GraviteeSource Team
+ */
+@CustomLog
+final class BitbucketDnsCache {
+
+    private static final BitbucketDnsCache SHARED = new BitbucketDnsCache(InetAddress::getAllByName);
+
+    private final Lookup lookup;
+    private final Map<String, Resolution> resolutions = new ConcurrentHashMap<>();
+    private final SingleFlight<InetAddress> lookups = new SingleFlight<>();
+
+    BitbucketDnsCache(Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    static BitbucketDnsCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the current address cached for the host if it was resolved less than {@code ttl} milliseconds ago, otherwise
+     * resolves it (or joins the lookup already in flight).
+     */
+    Future<InetAddress> resolve(Vertx vertx, String host, long ttl) {
+        final Resolution resolution = resolutions.get(host);
+        if (resolution != null && System.currentTimeMillis() - resolution.resolvedAt() < ttl) {
+            return Future.succeededFuture(resolution.address());
+        }
+        return lookups.run(host, () ->
+            vertx
+                .executeBlocking(() -> lookup.lookup(host))
+                .map(addresses -> resolutions.merge(host, new Resolution(addresses, 0, System.currentTimeMillis()), Resolution::refreshed))
+                .map(Resolution::address)
+                .recover(throwable -> {
+                    if (resolution == null) {
+                        return Future.failedFuture(throwable);
+                    }
+                    log.warn("Unable to resolve {} ({}), still using {}", host, throwable.getMessage(), resolution.address());
+                    return Future.succeededFuture(resolutions.getOrDefault(host, resolution).address());
+                })
+        );
+    }
+
+    /** Moves the host on to its next address, unless it already has, after connecting to {@code address} failed. */
+    void unreachable(String host, InetAddress address) {
+        resolutions.computeIfPresent(host, (key, resolution) -> resolution.address().equals(address) ? resolution.next() : resolution);
+    }
+
+    void clear() {
+        resolutions.clear();
+    }
+
+    /** Resolves all the addresses of a host, {@link InetAddress#getAllByName} outside of tests. */
+    @FunctionalInterface
+    interface Lookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    private record Resolution(InetAddress[] addresses, int current, long resolvedAt) {
+        InetAddress address() {
+            return addresses[current];
+        }
+
+        Resolution next() {
+            return new Resolution(addresses, (current + 1) % addresses.length, resolvedAt);
+        }
+
+        /** The refreshed addresses, still starting from the current address when it is one of them. */
+        Resolution refreshed(Resolution refreshed) {
+            final int index = Arrays.asList(refreshed.addresses()).indexOf(address());
+            return new Resolution(refreshed.addresses(), Math.max(index, 0), refreshed.resolvedAt());
+        }
+    }
+}
@@ -17,29 +17,68 @@ package io.gravitee.fetcher.bitbucket;
 
 import io.gravitee.common.http.HttpStatusCode;
 import io.gravitee.common.utils.UUID;
-import io.gravitee.fetcher.api.Fetcher;
 import io.gravitee.fetcher.api.FetcherConfiguration;
 import io.gravitee.fetcher.api.FetcherException;
+import io.gravitee.fetcher.api.FilesFetcher;
 import io.gravitee.fetcher.api.Resource;
 import io.gravitee.fetcher.api.ResourceNotFoundException;
 import io.gravitee.node.api.Node;
 import io.gravitee.node.api.utils.NodeUtils;
+import io.netty.util.NetUtil;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.*;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.JksOptions;
+import io.vertx.core.net.OpenSSLEngineOptions;
+import io.vertx.core.net.PemTrustOptions;
+import io.vertx.core.net.PfxOptions;
 import io.vertx.core.net.ProxyOptions;
 import io.vertx.core.net.ProxyType;
+import io.vertx.core.net.SocketAddress;
 import java.io.ByteArrayInputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import lombok.CustomLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -50,12 +89,50 @@ import org.springframework.scheduling.support.CronExpression;
  * @author GraviteeSource Team
  */
 @CustomLog
-public class BitbucketFetcher implements Fetcher {
+public class BitbucketFetcher implements FilesFetcher {
+
+    /** Metadata key of the polling interval of the file in milliseconds, in adaptive mode. */
+    public static final String POLL_INTERVAL_PROPERTY_KEY = "bitbucket.poll.interval";
+
+    /** Metadata key of the reason why the polling interval has been chosen, in adaptive mode. */
+    public static final String POLL_REASON_PROPERTY_KEY = "bitbucket.poll.reason";
+
+    /** Metadata key of the SHA-256 hash of the content, hex encoded. */
+    public static final String CONTENT_HASH_PROPERTY_KEY = "bitbucket.content.sha256";
+
+    /** Metadata key of the commit the content has been fetched at, when known. */
+    public static final String COMMIT_PROPERTY_KEY = "bitbucket.commit";
+
+    /** Metadata key of the {@code ETag} Bitbucket returned for the content, when known. */
+    public static final String ETAG_PROPERTY_KEY = "bitbucket.etag";
+
+    /** Metadata key of whether the content is the same as the one returned by the previous fetch of the file. */
+    public static final String UNCHANGED_PROPERTY_KEY = "bitbucket.unchanged";
 
     private static final String HTTPS_SCHEME = "https";
 
+    private static final Pattern COMMIT_HASH = Pattern.compile("[0-9a-f]{40}");
+
+
+    /** Number of scheduled fetches looked at to find the shortest interval of a cron, a year of daily fetches and more. */
+    private static final int MAX_CRON_FIRES = 1024;
+
+    /** Bitbucket hosts whose connections have been warmed up. */
+
+    /** Whether the missing OpenSSL engine has been reported, once per process. */
+    private static final AtomicBoolean OPENSSL_UNAVAILABLE_LOGGED = new AtomicBoolean();
+
+    /** Content requests in flight, by URL and credentials, shared by the fetchers of the same file. */
+    private static final SingleFlight<Fetched> CONTENT_REQUESTS = new SingleFlight<>();
+
     private BitbucketFetcherConfiguration bitbucketFetcherConfiguration;
 
+    /** Plan of the configuration, set by the entry points through {@link #requestPlan()}. */
+    private RequestPlan plan;
+
+    /** {@code Authorization} header of the configuration, {@code null} for anonymous access, set along with {@link #plan}. */
+    private String authorization;
+
     @Autowired
     private Vertx vertx;
 
@@ -92,34 +169,491 @@ public class BitbucketFetcher implements Fetcher {
     @Value("${httpClient.proxy.https.password:#{null}}")
     private String httpClientProxyHttpsPassword;
 
+    @Value("${fetcher.bitbucket.pool.maxSize:10}")
+    private int poolMaxSize = 10;
+
+    @Value("${fetcher.bitbucket.pool.idleTimeout:60000}")
+    private long poolIdleTimeout = 60_000;
+
+    @Value("${fetcher.bitbucket.dns.ttl:0}")
+    private long dnsCacheTtl = 0;
+
+    @Value("${fetcher.bitbucket.warmup.connections:0}")
+    private int warmupConnections = 0;
+
+    @Value("${fetcher.bitbucket.ssl.trustAll:false}")
+    private boolean sslTrustAll = false;
+
+    @Value("${fetcher.bitbucket.ssl.truststore.type:PEM}")
+    private String sslTruststoreType = "PEM";
+
+    @Value("${fetcher.bitbucket.ssl.truststore.path:#{null}}")
+    private String sslTruststorePath;
+
+    @Value("${fetcher.bitbucket.ssl.truststore.password:#{null}}")
+    private String sslTruststorePassword;
+
+    @Value("${fetcher.bitbucket.ssl.openssl:false}")
+    private boolean sslOpenSsl = false;
+
+    @Value("${fetcher.bitbucket.ssl.clientLinger:3600000}")
+    private long sslClientLinger = 3_600_000;
+
+    @Value("${fetcher.bitbucket.http2.enabled:false}")
+    private boolean http2Enabled = false;
+
+    @Value("${fetcher.bitbucket.http2.maxConnections:2}")
+    private int http2MaxConnections = 2;
+
+    @Value("${fetcher.bitbucket.http2.maxStreams:100}")
+    private int http2MaxStreams = 100;
+
+    @Value("${fetcher.bitbucket.conditionalRequests.enabled:true}")
+    private boolean conditionalRequestsEnabled = true;
+
+    @Value("${fetcher.bitbucket.rateLimit.requestsPerHour:0}")
+    private int rateLimitRequestsPerHour = 0;
+
+    @Value("${fetcher.bitbucket.rateLimit.burst:10}")
+    private int rateLimitBurst = 10;
+
+    @Value("${fetcher.bitbucket.retry.maxAttempts:3}")
+    private int retryMaxAttempts = 3;
+
+    @Value("${fetcher.bitbucket.retry.initialBackoff:500}")
+    private long retryInitialBackoff = 500;
+
+    @Value("${fetcher.bitbucket.hedging.enabled:false}")
+    private boolean hedgingEnabled = false;
+
+    @Value("${fetcher.bitbucket.hedging.percentile:95}")
+    private int hedgingPercentile = 95;
+
+    @Value("${fetcher.bitbucket.hedging.minDelay:100}")
+    private long hedgingMinDelay = 100;
+
+    @Value("${fetcher.bitbucket.hedging.budget:5}")
+    private int hedgingBudget = 5;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.enabled:false}")
+    private boolean circuitBreakerEnabled = false;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.windowSize:20}")
+    private int circuitBreakerWindowSize = 20;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.failureRateThreshold:50}")
+    private int circuitBreakerFailureRateThreshold = 50;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.slowCallDuration:5000}")
+    private long circuitBreakerSlowCallDuration = 5000;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.slowCallRateThreshold:100}")
+    private int circuitBreakerSlowCallRateThreshold = 100;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.openDuration:30000}")
+    private long circuitBreakerOpenDuration = 30_000;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.halfOpenCalls:3}")
+    private int circuitBreakerHalfOpenCalls = 3;
+
+    @Value("${fetcher.bitbucket.circuitBreaker.serveStale:true}")
+    private boolean circuitBreakerServeStale = true;
+
+    @Value("${fetcher.bitbucket.maxContentLength:0}")
+    private long maxContentLength = 0;
+
+    @Value("${fetcher.bitbucket.compression.enabled:false}")
+    private boolean compressionEnabled = false;
+
+    @Value("${fetcher.bitbucket.compression.maxDecodedLength:104857600}")
+    private long compressionMaxDecodedLength = 104_857_600;
+
+    @Value("${fetcher.bitbucket.streaming.enabled:false}")
+    private boolean streamingEnabled = false;
+
+    @Value("${fetcher.bitbucket.streaming.bufferSize:262144}")
+    private int streamingBufferSize = 256 * 1024;
+
+    @Value("${fetcher.bitbucket.streaming.idleTimeout:60000}")
+    private long streamingIdleTimeout = 60_000;
+
+    @Value("${fetcher.bitbucket.resolveRefs.enabled:false}")
+    private boolean resolveRefsEnabled = false;
+
+    @Value("${fetcher.bitbucket.resolveRefs.ttl:30000}")
+    private long resolveRefsTtl = 30_000;
+
+    @Value("${fetcher.bitbucket.resolveRefs.diffstat:false}")
+    private boolean resolveRefsDiffstat = false;
+
+    @Value("${fetcher.bitbucket.cache.ttl:0}")
+    private long cacheTtl = 0;
+
+    @Value("${fetcher.bitbucket.cache.maxEntries:1000}")
+    private int cacheMaxEntries = 1000;
+
+    @Value("${fetcher.bitbucket.cache.maxSize:67108864}")
+    private long cacheMaxSize = 64L * 1024 * 1024;
+
+    @Value("${fetcher.bitbucket.directory.concurrency:4}")
+    private int directoryConcurrency = 4;
+
+    @Value("${fetcher.bitbucket.directory.archive.enabled:false}")
+    private boolean archiveEnabled = false;
+
+    @Value("${fetcher.bitbucket.metrics.maxRepositories:100}")
+    private int metricsMaxRepositories = 100;
+
+    @Value("${fetcher.bitbucket.push.enabled:false}")
+    private boolean pushEnabled = false;
+
+    @Value("${fetcher.bitbucket.push.safetyNet:3600000}")
+    private long pushSafetyNet = 3_600_000;
+
+    @Value("${fetcher.bitbucket.sharedCache.directory:#{null}}")
+    private String sharedCacheDirectory;
+
+    @Value("${fetcher.bitbucket.sharedCache.interval:60000}")
+    private long sharedCacheInterval = 60_000;
+
+    @Value("${fetcher.bitbucket.sharedCache.maxSize:1073741824}")
+    private long sharedCacheMaxSize = 1024L * 1024 * 1024;
+
+    @Value("${fetcher.bitbucket.adaptive.enabled:false}")
+    private boolean adaptiveEnabled = false;
+
+    @Value("${fetcher.bitbucket.adaptive.maxInterval:3600000}")
+    private long adaptiveMaxInterval = 3_600_000;
+
+    @Value("${fetcher.bitbucket.diskCache.directory:#{null}}")
+    private String diskCacheDirectory;
+
+    @Value("${fetcher.bitbucket.diskCache.maxSize:268435456}")
+    private long diskCacheMaxSize = 256L * 1024 * 1024;
+
     public BitbucketFetcher(BitbucketFetcherConfiguration bitbucketFetcherConfiguration) {
         this.bitbucketFetcherConfiguration = bitbucketFetcherConfiguration;
     }
 
     @Override
     public Resource fetch() throws FetcherException {
-        checkRequiredFields();
         try {
-            Buffer buffer = fetchContent().join();
-            final Resource resource = new Resource();
-            if (buffer == null || buffer.length() == 0) {
-                log.warn("Bitbucket responded with a status 200 but the content is empty.");
-            } else {
-                resource.setContent(new ByteArrayInputStream(buffer.getBytes()));
-                final HashMap<String, Object> metadata = new HashMap<>(1);
-                metadata.put(EDIT_URL_PROPERTY_KEY, buildEditUrl());
-                metadata.put(PROVIDER_NAME_PROPERTY_KEY, "Bitbucket");
-                resource.setMetadata(metadata);
+            return fetchAsync().toCompletableFuture().join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof FetcherException fetcherException) {
+                throw fetcherException;
+            }
+            throw new FetcherException("Unable to fetch Bitbucket content (" + ex.getMessage() + ")", ex.getCause());
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #fetch()}: the returned stage is completed from the Vert.x event loop once the content
+     * has been received, so callers can run many fetches concurrently without parking a thread on each of them.
+     * <p>
+     * In streaming mode, the content of the resource is received by the event loop while it is read, so reading it from the
+     * event loop would block the very thread feeding it. The stage is then completed from a Vert.x worker thread instead,
+     * where dependent stages can read the resource. A stage attached from the event loop once the fetch has completed still
+     * runs on the event loop, and must not read a streamed resource there.
+     *
+     * @return a stage completed with the fetched resource, or exceptionally with a {@link FetcherException}
+     * ({@link ResourceNotFoundException} when the file does not exist)
+     */
+    public CompletionStage<Resource> fetchAsync() {
+        return fetchAsync(null);
+    }
+
+    /**
+     * Same as {@link #fetchAsync()}, for a caller that keeps the hash of the content it last processed: the
+     * {@link #UNCHANGED_PROPERTY_KEY} metadata then tells whether the content is the same as that one, rather than as the
+     * content last returned for the file on the node.
+     *
+     * @param previousContentHash the {@link #CONTENT_HASH_PROPERTY_KEY} of the content last processed by the caller,
+     * {@code null} if none
+     */
+    public CompletionStage<Resource> fetchAsync(String previousContentHash) {
+        final CompletableFuture<Resource> content;
+        final BitbucketMetrics.Observation observation = metrics().fetch(
+            bitbucketFetcherConfiguration.getUsername(),
+            bitbucketFetcherConfiguration.getRepository()
+        );
+        try {
+            requestPlan();
+            content = fetchContent(previousContentHash);
+        } catch (FetcherException ex) {
+            observation.complete(-1, ex);
+            return CompletableFuture.failedFuture(ex);
+        } catch (Exception ex) {
+            observation.complete(-1, ex);
+            return CompletableFuture.failedFuture(fetchFailure(ex));
+        }
+
+        final BiFunction<Resource, Throwable, Resource> outcome = (resource, throwable) -> {
+            if (throwable != null) {
+                final FetcherException failure = fetchFailure(throwable);
+                observation.complete(-1, failure);
+                throw new CompletionException(failure);
             }
+            observation.complete(-1, null);
             return resource;
+        };
+        return streamingEnabled ? content.handleAsync(outcome, this::executeOnWorker) : content.handle(outcome);
+    }
+
+    private void executeOnWorker(Runnable task) {
+        vertx.executeBlocking(
+            () -> {
+                task.run();
+                return null;
+            },
+            false
+        );
+    }
+
+    private static Resource toResource(InputStream content, String editUrl) {
+        return toResource(content, editUrl, Map.of());
+    }
+
+    private static Resource toResource(InputStream content, String editUrl, Map<String, Object> additionalMetadata) {
+        final Resource resource = new Resource();
+        if (content == null) {
+            log.warn("Bitbucket responded with a status 200 but the content is empty.");
+        } else {
+            resource.setContent(content);
+            final HashMap<String, Object> metadata = new HashMap<>(2 + additionalMetadata.size());
+            metadata.put(EDIT_URL_PROPERTY_KEY, editUrl);
+            metadata.put(PROVIDER_NAME_PROPERTY_KEY, "Bitbucket");
+            metadata.putAll(additionalMetadata);
+            resource.setMetadata(metadata);
+        }
+        return resource;
+    }
+
+    /** The polling interval of the configured file and its reason, in adaptive mode. */
+    private Map<String, Object> pollingMetadata() {
+        final BitbucketChangeTracker.Schedule schedule = adaptiveEnabled
+            ? BitbucketChangeTracker.shared().schedule(plan.contentUrl() + '#' + plan.credentials())
+            : null;
+        if (schedule == null) {
+            return Map.of();
+        }
+        return Map.of(POLL_INTERVAL_PROPERTY_KEY, schedule.interval(), POLL_REASON_PROPERTY_KEY, schedule.reason());
+    }
+
+    private static FetcherException fetchFailure(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        if (cause instanceof ResourceNotFoundException resourceNotFoundException) {
+            return resourceNotFoundException;
+        }
+        if (cause instanceof BitbucketCircuitBreaker.CircuitOpenException circuitOpen) {
+            // Already logged once, when the circuit opened
+            return circuitOpen;
+        }
+        log.error(cause.getMessage(), cause);
+        return new FetcherException("Unable to fetch Bitbucket content (" + cause.getMessage() + ")", cause);
+    }
+
+    /**
+     * Lists the files of the directory pointed to by {@code filepath}, recursively, keeping those matching the configured
+     * include and exclude patterns. When fetched content is cached, the files are also downloaded in parallel so that the
+     * fetches of each file that follow are served from the cache. In archive mode, the files are listed and downloaded from
+     * the repository archive.
+     */
+    @Override
+    public String[] files() throws FetcherException {
+        try {
+            final RequestPlan plan = requestPlan();
+            if (contentTtl() > 0 || resolveRefsEnabled || archiveEnabled) {
+                return fetchFiles().toCompletableFuture().join().keySet().toArray(String[]::new);
+            }
+            final String authorization = this.authorization;
+            final String credentials = plan.credentials();
+            return resolveCommit(authorization, credentials)
+                .compose(commit -> listFiles(commit, authorization, credentials))
+                .toCompletionStage()
+                .toCompletableFuture()
+                .join()
+                .toArray(String[]::new);
+        } catch (FetcherException ex) {
+            throw ex;
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof FetcherException fetcherException) {
+                throw fetcherException;
+            }
+            throw fetchFailure(ex);
         } catch (Exception ex) {
-            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
-            if (cause instanceof ResourceNotFoundException resourceNotFoundException) {
-                throw resourceNotFoundException;
+            throw fetchFailure(ex);
+        }
+    }
+
+    /**
+     * Fetches all the files {@link #files()} lists, with at most {@code fetcher.bitbucket.directory.concurrency} downloads
+     * in flight over the shared connection pool, or from a single download of the repository archive in archive mode.
+     *
+     * @return a stage completed with the resources by file path, in listing order
+     */
+    public CompletionStage<Map<String, Resource>> fetchFiles() {
+        final Future<Map<String, Resource>> resources;
+        try {
+            final RequestPlan plan = requestPlan();
+            if (pushEnabled) {
+                BitbucketPushHandler.register(vertx);
             }
-            log.error(cause.getMessage(), cause);
-            throw new FetcherException("Unable to fetch Bitbucket content (" + cause.getMessage() + ")", cause);
+            final String authorization = this.authorization;
+            final String credentials = plan.credentials();
+            resources = resolveCommit(authorization, credentials).compose(commit ->
+                archiveEnabled
+                    ? fetchArchive(commit, authorization, credentials)
+                    : listFiles(commit, authorization, credentials).compose(files -> fetchFiles(commit, files, authorization, credentials))
+            );
+        } catch (FetcherException ex) {
+            return CompletableFuture.failedFuture(ex);
+        } catch (Exception ex) {
+            return CompletableFuture.failedFuture(fetchFailure(ex));
         }
+
+        return resources
+            .toCompletionStage()
+            .handle((byPath, throwable) -> {
+                if (throwable != null) {
+                    throw new CompletionException(fetchFailure(throwable));
+                }
+                return byPath;
+            });
+    }
+
+    private Future<Map<String, Resource>> fetchFiles(String commit, List<String> files, String authorization, String credentials) {
+        return BoundedConcurrency.map(files, directoryConcurrency, file ->
+            fetchContent(commit, file, authorization, credentials).map(fetched ->
+                toResource(toInputStream(fetched.body()), buildEditUrl(file))
+            )
+        ).map(resources -> {
+            final Map<String, Resource> byPath = new LinkedHashMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                byPath.put(files.get(i), resources.get(i));
+            }
+            return byPath;
+        });
+    }
+
+    private Future<List<String>> listFiles(String commit, String authorization, String credentials) {
+        final FileSelector selector = fileSelector();
+        final List<String> files = Collections.synchronizedList(new ArrayList<>());
+
+        return listDirectory(commit == null ? ref() : commit, List.of(selector.directory()), files, authorization, credentials).map(v -> {
+            final List<String> matching;
+            synchronized (files) {
+                matching = new ArrayList<>(files.stream().filter(selector::matches).toList());
+            }
+            Collections.sort(matching);
+            return matching;
+        });
+    }
+
+    private FileSelector fileSelector() {
+        return new FileSelector(
+            plan.directory(),
+            bitbucketFetcherConfiguration.getIncludes(),
+            bitbucketFetcherConfiguration.getExcludes()
+        );
+    }
+
+    /**
+     * Downloads the repository archive at the given commit (or at the configured ref) and extracts the files of the directory
+     * import while the archive is received: neither the archive nor the skipped entries are ever held in memory.
+     */
+    private Future<Map<String, Resource>> fetchArchive(String commit, String authorization, String credentials) {
+        final String ref = commit == null ? ref() : commit;
+        final String url = plan.webUrl() + "/get/" + ref + ".zip";
+        final boolean cacheable = commit != null || contentTtl() > 0;
+        return exchange(url, authorization, credentials, reqOptions -> {}, response -> {
+            if (response.statusCode() != HttpStatusCode.OK_200) {
+                return failure(url, response);
+            }
+            return ResponseBodies.stream(response, 0, streamingBufferSize, vertx, streamingIdleTimeout);
+        }).compose(archive -> vertx.executeBlocking(() -> extractArchive(archive, ref, credentials, cacheable)));
+    }
+
+    private Map<String, Resource> extractArchive(InputStream archive, String ref, String credentials, boolean cacheable)
+        throws IOException, FetcherException {
+        final FileSelector selector = fileSelector();
+        final Map<String, Resource> resources = new TreeMap<>();
+        try (ZipInputStream zip = new ZipInputStream(archive)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                // Entries are prefixed with a "{workspace}-{repository}-{commit}/" root directory
+                final int root = entry.getName().indexOf('/');
+                final String file = root == -1 ? entry.getName() : entry.getName().substring(root + 1);
+                if (entry.isDirectory() || file.isEmpty() || !selector.matches(file)) {
+                    continue;
+                }
+                final byte[] content = readEntry(zip);
+                if (cacheable) {
+                    final CachedContent cached = new CachedContent(content, null, null, System.currentTimeMillis());
+                    contentCache().put(getEncodedRequestUrl(ref, file), credentials, cached);
+                }
+                resources.put(file, toResource(content.length == 0 ? null : new ByteArrayInputStream(content), buildEditUrl(file)));
+            }
+            // Consume the central directory so the connection can be reused
+            archive.transferTo(OutputStream.nullOutputStream());
+        }
+        return resources;
+    }
+
+    private byte[] readEntry(ZipInputStream zip) throws IOException, FetcherException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[8192];
+        int read;
+        while ((read = zip.read(chunk)) != -1) {
+            content.write(chunk, 0, read);
+            if (maxContentLength > 0 && content.size() > maxContentLength) {
+                throw ResponseBodies.tooLarge(maxContentLength);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    /** Lists the given directories level by level, with at most {@code directoryConcurrency} listings in flight. */
+    private Future<Void> listDirectory(String ref, List<String> directories, List<String> files, String authorization, String credentials) {
+        if (directories.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return BoundedConcurrency.map(directories, directoryConcurrency, directory -> {
+            final String url = repositoryUrl() + "/src/" + ref + "/" + (directory.isEmpty() ? "" : directory + "/") + "?pagelen=100";
+            return listPage(url, files, authorization, credentials);
+        }).compose(subdirectories ->
+            listDirectory(ref, subdirectories.stream().flatMap(List::stream).toList(), files, authorization, credentials)
+        );
+    }
+
+    /** Lists a page of a directory and the pages following it, completing with the subdirectories found. */
+    private Future<List<String>> listPage(String url, List<String> files, String authorization, String credentials) {
+        return exchange(url, authorization, credentials, reqOptions -> {}, response -> {
+            if (response.statusCode() != HttpStatusCode.OK_200) {
+                return failure(url, response);
+            }
+            return response.body();
+        }).compose(body -> {
+            final JsonObject page = body.toJsonObject();
+            final List<String> subdirectories = new ArrayList<>();
+            final JsonArray values = page.getJsonArray("values", new JsonArray());
+            for (int i = 0; i < values.size(); i++) {
+                final JsonObject entry = values.getJsonObject(i);
+                if ("commit_directory".equals(entry.getString("type"))) {
+                    subdirectories.add(entry.getString("path"));
+                } else if ("commit_file".equals(entry.getString("type"))) {
+                    files.add(entry.getString("path"));
+                }
+            }
+            final String next = page.getString("next");
+            if (next == null) {
+                return Future.succeededFuture(subdirectories);
+            }
+            return listPage(next, files, authorization, credentials).map(following -> {
+                subdirectories.addAll(following);
+                return subdirectories;
+            });
+        });
     }
 
     @Override
@@ -150,52 +684,117 @@ public class BitbucketFetcher implements Fetcher {
         }
     }
 
-    private String buildEditUrl() throws FetcherException {
-        checkRequiredFields();
-        final String bitbucketUrl = bitbucketFetcherConfiguration.getBitbucketUrl().replace("api.", "");
-        return (
-            bitbucketUrl.substring(0, bitbucketUrl.lastIndexOf('/')) +
-            '/' +
-            bitbucketFetcherConfiguration.getUsername() +
-            '/' +
-            bitbucketFetcherConfiguration.getRepository() +
-            "/src/" +
-            (bitbucketFetcherConfiguration.getBranchOrTag() == null ? "master" : bitbucketFetcherConfiguration.getBranchOrTag()) +
-            '/' +
-            bitbucketFetcherConfiguration.getFilepath() +
-            "?spa=0&mode=edit"
+    /**
+     * Returns the plan of the current configuration, validating and compiling it the first time the configuration is seen.
+     */
+    private RequestPlan requestPlan() throws FetcherException {
+        final String authorization = authorizationHeader(
+            bitbucketFetcherConfiguration.getLogin(),
+            bitbucketFetcherConfiguration.getPassword()
         );
+        final RequestPlan.Key key;
+        try {
+            key = RequestPlan.Key.of(bitbucketFetcherConfiguration, credentialsFingerprint(authorization));
+        } catch (NoSuchAlgorithmException e) {
+            throw new FetcherException("Unable to fingerprint the Bitbucket credentials", e);
+        }
+        RequestPlan compiled = RequestPlan.lookup(key);
+        if (compiled == null) {
+            checkRequiredFields();
+            compiled = RequestPlan.register(compilePlan(key));
+        }
+        this.authorization = authorization;
+        plan = compiled;
+        warmUp(compiled);
+        return compiled;
     }
 
-    private String getEncodedRequestUrl() throws UnsupportedEncodingException {
-        String ref = ((bitbucketFetcherConfiguration.getBranchOrTag() == null ||
-                    bitbucketFetcherConfiguration.getBranchOrTag().trim().isEmpty())
-                ? "master"
-                : bitbucketFetcherConfiguration.getBranchOrTag().trim());
-
-        return (
-            bitbucketFetcherConfiguration.getBitbucketUrl().trim() +
-            "/repositories/" +
-            bitbucketFetcherConfiguration.getUsername() +
-            "/" +
-            bitbucketFetcherConfiguration.getRepository() +
-            "/src/" +
-            ref +
-            "/" +
-            normalizeFilepath(bitbucketFetcherConfiguration.getFilepath())
+    private static RequestPlan compilePlan(RequestPlan.Key key) {
+        final String ref = key.branchOrTag() == null || key.branchOrTag().trim().isEmpty() ? "master" : key.branchOrTag().trim();
+        final String filepath = normalizeFilepath(key.filepath());
+        final String repositoryUrl = key.bitbucketUrl().trim() + "/repositories/" + key.username() + "/" + key.repository();
+        // Repository URL on the Bitbucket website, derived from the API URL (https://api.bitbucket.org/2.0)
+        final String bitbucketUrl = key.bitbucketUrl().replace("api.", "");
+        final String webUrl = bitbucketUrl.substring(0, bitbucketUrl.lastIndexOf('/')) + '/' + key.username() + '/' + key.repository();
+        return new RequestPlan(
+            key,
+            ref,
+            filepath,
+            filepath.replaceAll("/+$", ""),
+            repositoryUrl,
+            webUrl,
+            repositoryUrl + "/src/" + ref + "/" + filepath,
+            editUrl(webUrl, key.branchOrTag(), key.filepath()),
+            cronInterval(key)
         );
     }
 
+    /**
+     * Shortest interval between two fetches scheduled by the configuration over the next year, {@code 0} without auto fetch.
+     * The schedule of a cron can be irregular (e.g. week days only), the shortest interval never spans a scheduled fetch.
+     */
+    private static long cronInterval(RequestPlan.Key key) {
+        if (!key.autoFetch() || key.fetchCron() == null || key.fetchCron().isBlank()) {
+            return 0;
+        }
+        // Already validated by checkRequiredFields
+        final CronExpression cron = CronExpression.parse(key.fetchCron());
+        final LocalDateTime first = cron.next(LocalDateTime.now());
+        if (first == null) {
+            return 0;
+        }
+        final LocalDateTime horizon = first.plusYears(1);
+        long shortest = 0;
+        LocalDateTime previous = first;
+        for (int i = 0; i < MAX_CRON_FIRES; i++) {
+            final LocalDateTime next = cron.next(previous);
+            if (next == null || next.isAfter(horizon)) {
+                break;
+            }
+            final long interval = Duration.between(previous, next).toMillis();
+            shortest = shortest == 0 ? interval : Math.min(shortest, interval);
+            previous = next;
+        }
+        return shortest;
+    }
+
+    private String buildEditUrl(String filepath) {
+        return editUrl(plan.webUrl(), plan.key().branchOrTag(), filepath);
+    }
+
+    private static String editUrl(String webUrl, String branchOrTag, String filepath) {
+        return webUrl + "/src/" + (branchOrTag == null ? "master" : branchOrTag) + '/' + filepath + "?spa=0&mode=edit";
+    }
+
+    private String getEncodedRequestUrl(String ref, String filepath) {
+        if (ref.equals(plan.ref()) && filepath.equals(plan.filepath())) {
+            return plan.contentUrl();
+        }
+        return plan.repositoryUrl() + "/src/" + ref + "/" + normalizeFilepath(filepath);
+    }
+
+    private String repositoryUrl() {
+        return plan.repositoryUrl();
+    }
+
+    private String ref() {
+        return plan.ref();
+    }
+
     /** Accepts both filepath forms (with or without leading slash); never persisted back to the configuration. */
     private static String normalizeFilepath(String filepath) {
-        return filepath == null ? "" : filepath.trim().replaceAll("^/+", "");
+        if (filepath == null) {
+            return "";
+        }
+        final String trimmed = filepath.trim();
+        int start = 0;
+        while (start < trimmed.length() && trimmed.charAt(start) == '/') {
+            start++;
+        }
+        return trimmed.substring(start);
     }
 
     private String buildNotFoundMessage(String url) {
-        String ref = bitbucketFetcherConfiguration.getBranchOrTag() == null ||
-            bitbucketFetcherConfiguration.getBranchOrTag().trim().isEmpty()
-            ? "master"
-            : bitbucketFetcherConfiguration.getBranchOrTag().trim();
         return (
             "Unable to fetch file '" +
             bitbucketFetcherConfiguration.getFilepath() +
@@ -204,91 +803,937 @@ public class BitbucketFetcher implements Fetcher {
             "/" +
             bitbucketFetcherConfiguration.getRepository() +
             "' (ref: " +
-            ref +
+            ref() +
             "): resource not found. Requested URL: " +
             url
         );
     }
 
-    private CompletableFuture<Buffer> fetchContent() throws Exception {
-        Promise<Buffer> promise = Promise.promise();
+    private CompletableFuture<Resource> fetchContent(String previousContentHash) {
+        if (pushEnabled) {
+            BitbucketPushHandler.register(vertx);
+        }
+        final String authorization = this.authorization;
+        final String credentials = plan.credentials();
 
-        String url = getEncodedRequestUrl();
+        return resolveCommit(authorization, credentials)
+            .compose(commit ->
+                streamingEnabled
+                    ? streamContent(commit, plan.filepath(), authorization, credentials).map(stream ->
+                        toResource(stream, plan.editUrl(), contentMetadata(commit, null, null, null))
+                    )
+                    : fetchContent(commit, plan.filepath(), authorization, credentials).map(fetched -> {
+                        final byte[] content = fetched.body() == null ? new byte[0] : fetched.body().getBytes();
+                        return toResource(
+                            content.length == 0 ? null : new ByteArrayInputStream(content),
+                            plan.editUrl(),
+                            contentMetadata(commit, content, fetched.hash(), previousContentHash)
+                        );
+                    })
+            )
+            .toCompletionStage()
+            .toCompletableFuture();
+    }
 
-        URI requestUri = URI.create(url);
-        boolean ssl = HTTPS_SCHEME.equalsIgnoreCase(requestUri.getScheme());
+    /**
+     * Describes the content of the configured file, so that APIM can skip processing it again when it has not changed. The
+     * content is only hashed when fully received: a streamed resource is read after it is returned.
+     *
+     * @param commit the commit the content has been fetched at, {@code null} when fetched at the configured ref
+     * @param content the fetched content, {@code null} when streamed
+     * @param hash the hash of the content, {@code null} when streamed
+     * @param previousContentHash the hash of the content last processed by the caller, {@code null} to compare with the
+     * content last returned for the file on the node
+     */
+    private Map<String, Object> contentMetadata(String commit, byte[] content, String hash, String previousContentHash) {
+        final Map<String, Object> metadata = new HashMap<>(pollingMetadata());
+        final String fetchedAt = commit != null ? commit : COMMIT_HASH.matcher(ref()).matches() ? ref() : null;
+        if (fetchedAt != null) {
+            metadata.put(COMMIT_PROPERTY_KEY, fetchedAt);
+        }
+        if (content != null) {
+            metadata.put(CONTENT_HASH_PROPERTY_KEY, hash);
+            // Fetchers are created for each fetch, what was last returned for the file is kept with the request key
+            final String delivered = BitbucketChangeTracker.shared().deliver(plan.contentUrl() + '#' + plan.credentials(), hash);
+            metadata.put(UNCHANGED_PROPERTY_KEY, hash.equals(previousContentHash != null ? previousContentHash : delivered));
+            final CachedContent cached = contentCache().get(getEncodedRequestUrl(commit == null ? ref() : commit, plan.filepath()));
+            if (cached != null && cached.etag() != null && Arrays.equals(cached.content(), content)) {
+                metadata.put(ETAG_PROPERTY_KEY, cached.etag());
+            }
+        }
+        return metadata;
+    }
 
-        final HttpClientOptions options = new HttpClientOptions()
-            .setSsl(ssl)
-            .setTrustAll(true)
-            .setKeepAlive(false)
-            .setTcpKeepAlive(false)
-            .setConnectTimeout(httpClientTimeout)
-            .setIdleTimeout(httpClientTimeout)
-            .setIdleTimeoutUnit(TimeUnit.MILLISECONDS);
+    private static InputStream toInputStream(Buffer buffer) {
+        return buffer == null || buffer.length() == 0 ? null : new ByteArrayInputStream(buffer.getBytes());
+    }
 
-        final PoolOptions poolOptions = new PoolOptions().setHttp1MaxSize(1);
+    /**
+     * Exposes the file as a stream read while it is received. The content is never held in memory as a whole, hence never
+     * cached, but the content cached by other fetches of the file is served while the circuit is open. Completes with
+     * {@code null} when Bitbucket announces an empty body.
+     */
+    private Future<InputStream> streamContent(String commit, String filepath, String authorization, String credentials) {
+        final String url = getEncodedRequestUrl(commit == null ? ref() : commit, filepath);
+        return exchange(url, authorization, credentials, true, this::acceptEncoding, response -> {
+            if (response.statusCode() != HttpStatusCode.OK_200) {
+                return failure(url, response);
+            }
+            if (ResponseBodies.announcedLength(response) == 0) {
+                return Future.succeededFuture(null);
+            }
+            return ResponseBodies
+                .stream(response, maxBodyLength(response), streamingBufferSize, vertx, streamingIdleTimeout)
+                .map(InputStream.class::cast);
+        }).recover(throwable -> lastKnownContent(url, credentials, throwable).map(BitbucketFetcher::toInputStream));
+    }
 
-        if (bitbucketFetcherConfiguration.isUseSystemProxy()) {
-            ProxyOptions proxyOptions = new ProxyOptions();
-            proxyOptions.setType(ProxyType.valueOf(httpClientProxyType));
-            if (HTTPS_SCHEME.equals(requestUri.getScheme())) {
-                proxyOptions.setHost(httpClientProxyHttpsHost);
-                proxyOptions.setPort(httpClientProxyHttpsPort);
-                proxyOptions.setUsername(httpClientProxyHttpsUsername);
-                proxyOptions.setPassword(httpClientProxyHttpsPassword);
-            } else {
-                proxyOptions.setHost(httpClientProxyHttpHost);
-                proxyOptions.setPort(httpClientProxyHttpPort);
-                proxyOptions.setUsername(httpClientProxyHttpUsername);
-                proxyOptions.setPassword(httpClientProxyHttpPassword);
+    /**
+     * Fetches the file at the given commit, or at the configured ref when {@code commit} is {@code null}. Content fetched at a
+     * commit never changes, so it is served from the cache for as long as it stays there.
+     */
+    private Future<Fetched> fetchContent(String commit, String filepath, String authorization, String credentials) {
+        final String url = getEncodedRequestUrl(commit == null ? ref() : commit, filepath);
+        // In adaptive mode, the scheduled fetches of a stable file are served from memory during its stretched polling interval
+        final String trackingKey = adaptiveEnabled && commit == null && plan.cronInterval() > 0 ? url + '#' + credentials : null;
+        final long ttl = commit == null ? Math.max(contentTtl(), adaptiveTtl(trackingKey)) : Long.MAX_VALUE;
+        // A tracked file is kept even when its TTL is still 0: the polling interval it gets once observed is served from memory
+        final boolean cacheable = ttl > 0 || trackingKey != null;
+        final SharedContentStore sharedStore = sharedCache();
+        final FileContentStore diskStore = diskCache();
+
+        if (ttl > 0) {
+            final CachedContent fresh = contentCache().getFresh(url, credentials, ttl);
+            if (fresh != null) {
+                return Future.succeededFuture(new Fetched(Buffer.buffer(fresh.content())));
             }
-            options.setProxyOptions(proxyOptions);
         }
+        final Supplier<Future<Buffer>> load = () ->
+            sharedStore == null
+                ? requestContent(url, authorization, credentials, cacheable)
+                : loadShared(sharedStore, url, authorization, credentials, cacheable, commit == null ? sharedCacheInterval : ttl);
+        final Supplier<Future<Buffer>> download = () ->
+            diskStore == null ? load.get() : loadFromDisk(diskStore, url, credentials, ttl, load);
+        final Supplier<Future<Buffer>> fetch = commit != null && resolveRefsDiffstat
+            ? () -> downloadIfChanged(commit, filepath, url, authorization, credentials, download)
+            : download;
+        // Fetchers of the same file scheduled at the same time share a single request, each one reads its own copy
+        return CONTENT_REQUESTS.run(url + '#' + credentials, () ->
+            fetch
+                .get()
+                .map(Fetched::new)
+                .onSuccess(fetched -> {
+                    if (trackingKey != null) {
+                        BitbucketChangeTracker.shared().observe(
+                            trackingKey,
+                            fetched.hash(),
+                            plan.cronInterval(),
+                            Math.max(plan.cronInterval(), adaptiveMaxInterval),
+                            System.currentTimeMillis()
+                        );
+                    }
+                })
+                .recover(throwable -> lastKnownContent(url, credentials, throwable).map(Fetched::new))
+        );
+    }
+
+    /**
+     * Downloads the file at the given commit, unless the commit it was last fetched at is still cached and the diff between
+     * both commits, looked up once for the whole repository, does not touch it.
+     */
+    private Future<Buffer> downloadIfChanged(
+        String commit,
+        String filepath,
+        String url,
+        String authorization,
+        String credentials,
+        Supplier<Future<Buffer>> download
+    ) {
+        final BitbucketRefreshPlanner planner = BitbucketRefreshPlanner.shared();
+        final String file = repositoryUrl() + '/' + filepath + '#' + credentials;
+        final String previous = planner.lastSeen(file);
+        final CachedContent cached = previous == null || previous.equals(commit)
+            ? null
+            : contentCache().peek(getEncodedRequestUrl(previous, filepath), credentials);
+        if (cached == null) {
+            return download.get().onSuccess(body -> planner.seen(file, commit));
+        }
+
+        return planner
+            .changedPaths(repositoryUrl() + '#' + credentials, previous, commit, () ->
+                changedPaths(previous, commit, authorization, credentials)
+            )
+            .transform(changed -> {
+                if (changed.failed()) {
+                    log.debug("Unable to list the files changed between {} and {}, downloading '{}'", previous, commit, filepath);
+                    return download.get();
+                }
+                if (changed.result().contains(filepath)) {
+                    return download.get();
+                }
+                log.debug("'{}' has not changed between {} and {}, reusing its content", filepath, previous, commit);
+                contentCache().put(url, credentials, cached);
+                return Future.succeededFuture(Buffer.buffer(cached.content()));
+            })
+            .onSuccess(body -> planner.seen(file, commit));
+    }
+
+    /** Lists the paths changed between two commits through the diffstat API, both sides of renames included. */
+    private Future<Set<String>> changedPaths(String from, String to, String authorization, String credentials) {
+        // Without topic, a plain two-dot diff between both commits rather than the changes since their merge base
+        final String url =
+            repositoryUrl() + "/diffstat/" + to + ".." + from + "?topic=false&pagelen=500&fields=next,values.old.path,values.new.path";
+        return diffstatPage(url, new HashSet<>(), authorization, credentials);
+    }
+
+    private Future<Set<String>> diffstatPage(String url, Set<String> paths, String authorization, String credentials) {
+        return exchange(url, authorization, credentials, reqOptions -> {}, response -> {
+            if (response.statusCode() != HttpStatusCode.OK_200) {
+                return failure(url, response);
+            }
+            return response.body();
+        }).compose(body -> {
+            final JsonObject page = body.toJsonObject();
+            final JsonArray values = page.getJsonArray("values", new JsonArray());
+            for (int i = 0; i < values.size(); i++) {
+                final JsonObject diff = values.getJsonObject(i);
+                for (String side : List.of("old", "new")) {
+                    final JsonObject file = diff.getJsonObject(side);
+                    if (file != null && file.getString("path") != null) {
+                        paths.add(file.getString("path"));
+                    }
+                }
+            }
+            final String next = page.getString("next");
+            return next == null ? Future.succeededFuture(paths) : diffstatPage(next, paths, authorization, credentials);
+        });
+    }
+
+    /** Serves the cached content of the file, however old, when the request failed because its circuit is open. */
+    private Future<Buffer> lastKnownContent(String url, String credentials, Throwable throwable) {
+        if (servesStale(throwable)) {
+            final CachedContent stale = contentCache().peek(url, credentials);
+            if (stale != null) {
+                log.debug("Bitbucket circuit is open, serving the last known content of '{}'", url);
+                return Future.succeededFuture(Buffer.buffer(stale.content()));
+            }
+        }
+        return Future.failedFuture(throwable);
+    }
+
+    /** Whether what was last fetched is served instead of the failure, which happens when the circuit is open. */
+    private boolean servesStale(Throwable throwable) {
+        return throwable instanceof BitbucketCircuitBreaker.CircuitOpenException && circuitBreakerServeStale;
+    }
+
+    /**
+     * How long the content of a tracked file is served from memory: until the last scheduled fetch falling within its polling
+     * interval, which is let through.
+     */
+    private long adaptiveTtl(String trackingKey) {
+        final BitbucketChangeTracker.Schedule schedule = trackingKey == null ? null : BitbucketChangeTracker.shared().schedule(trackingKey);
+        return schedule == null ? 0 : schedule.interval() - plan.cronInterval() / 2;
+    }
+
+    private static String contentHash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private FileContentStore sharedCache() {
+        if (sharedCacheDirectory == null || sharedCacheDirectory.isBlank()) {
+            return null;
+        }
+        final FileContentStore sharedStore = FileContentStore.of(sharedCacheDirectory);
+        sharedStore.setMaxSize(sharedCacheMaxSize);
+        return sharedStore;
+    }
+
+    private FileContentStore diskCache() {
+        if (diskCacheDirectory == null || diskCacheDirectory.isBlank()) {
+            return null;
+        }
+        final FileContentStore diskStore = FileContentStore.of(diskCacheDirectory);
+        diskStore.setMaxSize(diskCacheMaxSize);
+        return diskStore;
+    }
+
+    /**
+     * Serves the content kept on disk by a previous run while it is younger than {@code ttl}, and right away on the first fetch
+     * of the file after a restart, while it is revalidated in the background. Otherwise loads it, sending the request with the
+     * validators of the content kept on disk, writes it to disk once loaded, and falls back to the content kept on disk when
+     * Bitbucket cannot be reached. Content fetched before the last push to its ref is only used to send the request.
+     */
+    private Future<Buffer> loadFromDisk(
+        FileContentStore diskStore,
+        String url,
+        String credentials,
+        long ttl,
+        Supplier<Future<Buffer>> load
+    ) {
+        final String key = url + '#' + credentials;
+        final long pushedAt = pushEnabled ? BitbucketPushHandler.pushedAt(url) : 0;
+        return vertx
+            .executeBlocking(() -> diskStore.read(key))
+            .compose(stored -> {
+                final boolean current = stored != null && stored.fetchedAt() > pushedAt;
+                if (current && stored.isFresh(ttl, System.currentTimeMillis())) {
+                    log.debug("Serving Bitbucket content of '{}' from the disk cache", url);
+                    contentCache().put(url, credentials, stored);
+                    return Future.succeededFuture(Buffer.buffer(stored.content()));
+                }
+                final boolean restarted = stored != null && contentCache().get(url) == null;
+                if (restarted) {
+                    // Lets the request be sent with the validators of the content kept on disk
+                    contentCache().put(url, credentials, stored);
+                }
+                if (restarted && current) {
+                    log.debug("Serving Bitbucket content of '{}' from the disk cache while revalidating it", url);
+                    loadToDisk(diskStore, key, url, load).onFailure(throwable ->
+                        log.debug("Unable to revalidate the Bitbucket content of '{}' kept on disk", url, throwable)
+                    );
+                    return Future.succeededFuture(Buffer.buffer(stored.content()));
+                }
+                return loadToDisk(diskStore, key, url, load).recover(throwable -> {
+                    if (stored != null && isUnreachable(throwable)) {
+                        log.debug("Bitbucket cannot be reached, serving the content of '{}' kept on disk", url);
+                        return Future.succeededFuture(Buffer.buffer(stored.content()));
+                    }
+                    return Future.failedFuture(throwable);
+                });
+            });
+    }
+
+    /** Loads the content and writes it to disk, with the validators it got in the content cache. */
+    private Future<Buffer> loadToDisk(FileContentStore diskStore, String key, String url, Supplier<Future<Buffer>> load) {
+        return load
+            .get()
+            .compose(body -> {
+                final CachedContent cached = contentCache().get(url);
+                final long now = System.currentTimeMillis();
+                final CachedContent content = cached != null ? cached : new CachedContent(body.getBytes(), null, null, now);
+                return vertx
+                    .executeBlocking(() -> {
+                        diskStore.write(key, content);
+                        return body;
+                    })
+                    .recover(throwable -> {
+                        log.warn("Unable to write the Bitbucket content of '{}' to disk", url, throwable);
+                        return Future.succeededFuture(body);
+                    });
+            });
+    }
+
+    /** Whether the request failed without an answer from Bitbucket: connection failure, timeout or open circuit. */
+    private static boolean isUnreachable(Throwable throwable) {
+        return throwable instanceof BitbucketCircuitBreaker.CircuitOpenException || !(throwable instanceof FetcherException);
+    }
+
+    /**
+     * Reads the content from the store shared by the nodes when another node fetched it less than {@code maxAge}
+     * milliseconds ago, or while another node holds the lease on refreshing it. Otherwise takes the lease, requests the
+     * content from Bitbucket (conditionally, with the validators of the stored content) and stores it for the other nodes.
+     * Content fetched before the last push to its ref is only used to send the request.
+     */
+    private Future<Buffer> loadShared(
+        SharedContentStore store,
+        String url,
+        String authorization,
+        String credentials,
+        boolean cacheable,
+        long maxAge
+    ) {
+        final String key = url + '#' + credentials;
+        final long pushedAt = pushEnabled ? BitbucketPushHandler.pushedAt(url) : 0;
+        return vertx
+            .executeBlocking(() -> {
+                final CachedContent stored = store.read(key);
+                final boolean current = stored != null && stored.fetchedAt() > pushedAt;
+                final boolean fresh = current && stored.isFresh(maxAge, System.currentTimeMillis());
+                return new SharedLookup(stored, current, fresh, !fresh && store.tryLease(key, sharedCacheInterval));
+            })
+            .compose(lookup -> {
+                if (lookup.fresh() || (lookup.current() && !lookup.leased())) {
+                    log.debug("Serving Bitbucket content of '{}' fetched by another node", url);
+                    contentCache().put(url, credentials, lookup.stored());
+                    return Future.succeededFuture(Buffer.buffer(lookup.stored().content()));
+                }
+                if (lookup.stored() != null && contentCache().get(url) == null) {
+                    // Lets the request be sent with the validators of the stored content
+                    contentCache().put(url, credentials, lookup.stored());
+                }
+                return requestContent(url, authorization, credentials, cacheable)
+                    .compose(body ->
+                        vertx.executeBlocking(() -> {
+                            final CachedContent cached = contentCache().get(url);
+                            final long now = System.currentTimeMillis();
+                            store.write(key, cached != null ? cached : new CachedContent(body.getBytes(), null, null, now));
+                            return body;
+                        })
+                    )
+                    .onFailure(throwable -> {
+                        if (lookup.leased()) {
+                            vertx.executeBlocking(() -> {
+                                store.releaseLease(key);
+                                return null;
+                            });
+                        }
+                    });
+            });
+    }
+
+    /**
+     * Resolves the configured ref to the commit it points to when ref resolution is enabled, completes with {@code null}
+     * otherwise.
+     */
+    private Future<String> resolveCommit(String authorization, String credentials) {
+        if (!resolveRefsEnabled) {
+            return Future.succeededFuture(null);
+        }
+        final String ref = ref();
+        if (COMMIT_HASH.matcher(ref).matches()) {
+            return Future.succeededFuture(ref);
+        }
+
+        final String url =
+            repositoryUrl() + "/refs?q=" + URLEncoder.encode("name=\"" + ref + "\"", StandardCharsets.UTF_8) + "&fields=values.target.hash";
+        final String key = repositoryUrl() + '@' + ref + '#' + credentials;
+        return BitbucketCommitResolver.shared()
+            .resolve(key, pushRelayed() ? Math.max(resolveRefsTtl, pushSafetyNet) : resolveRefsTtl, () ->
+                exchange(url, authorization, credentials, reqOptions -> {}, response -> {
+                    if (response.statusCode() != HttpStatusCode.OK_200) {
+                        return failure(url, response);
+                    }
+                    return response.body().map(body -> commitOf(body.toJsonObject()));
+                })
+            )
+            .recover(throwable -> {
+                // The content fetched at that commit is likely still in memory
+                final String commit = servesStale(throwable) ? BitbucketCommitResolver.shared().lastResolved(key) : null;
+                if (commit != null) {
+                    log.debug("Bitbucket circuit is open, fetching '{}' at the last commit it was resolved to", ref);
+                    return Future.succeededFuture(commit);
+                }
+                return Future.failedFuture(throwable);
+            });
+    }
 
-        final HttpClient httpClient = vertx.createHttpClient(options, poolOptions);
-        // Ensure the HTTP client is closed exactly once when the promise completes, regardless of success or failure
-        promise.future().onComplete(ar -> httpClient.close());
+    private static String commitOf(JsonObject refs) {
+        final JsonArray values = refs.getJsonArray("values");
+        if (values == null || values.isEmpty()) {
+            // Unknown ref: let the content request report it
+            return null;
+        }
+        final JsonObject target = values.getJsonObject(0).getJsonObject("target");
+        return target == null ? null : target.getString("hash");
+    }
 
-        final int port = requestUri.getPort() != -1 ? requestUri.getPort() : (HTTPS_SCHEME.equals(requestUri.getScheme()) ? 443 : 80);
+    /** Asks Bitbucket for a compressed file, in compression mode. */
+    private void acceptEncoding(RequestOptions reqOptions) {
+        if (compressionEnabled) {
+            reqOptions.putHeader("Accept-Encoding", ContentDecoder.acceptEncoding());
+        }
+    }
+
+    /** Maximum size of a body once decoded: compressed bodies are capped even without maximum content length. */
+    private long maxBodyLength(HttpClientResponse response) {
+        if (response.getHeader("Content-Encoding") == null || compressionMaxDecodedLength <= 0) {
+            return maxContentLength;
+        }
+        return maxContentLength > 0 ? Math.min(maxContentLength, compressionMaxDecodedLength) : compressionMaxDecodedLength;
+    }
+
+    private Future<Buffer> requestContent(String url, String authorization, String credentials, boolean cacheable) {
+        final CachedContent cached = conditionalRequestsEnabled ? contentCache().get(url) : null;
+        return exchange(
+            url,
+            authorization,
+            credentials,
+            true,
+            reqOptions -> {
+                acceptEncoding(reqOptions);
+                if (cached != null) {
+                    if (cached.etag() != null) {
+                        reqOptions.putHeader("If-None-Match", cached.etag());
+                    }
+                    if (cached.lastModified() != null) {
+                        reqOptions.putHeader("If-Modified-Since", cached.lastModified());
+                    }
+                }
+            },
+            response -> handleResponse(url, credentials, response, cached, cacheable)
+        );
+    }
+
+    /**
+     * Sends a GET request to Bitbucket once the rate limiter allows it, and hands the response to {@code responseHandler}.
+     * Throttled requests ({@code 429}/{@code 503}) are retried after the delay Bitbucket asks for, or a jittered exponential
+     * backoff, as long as the retry can start within {@code httpClientTimeout} of the first attempt.
+     */
+    private <T> Future<T> exchange(
+        String url,
+        String authorization,
+        String credentials,
+        Consumer<RequestOptions> customizer,
+        Function<HttpClientResponse, Future<T>> responseHandler
+    ) {
+        return exchange(url, authorization, credentials, false, customizer, responseHandler);
+    }
+
+    /**
+     * Same as {@link #exchange(String, String, String, Consumer, Function)}, the request being hedged in hedging mode when
+     * {@code hedge} is set.
+     */
+    private <T> Future<T> exchange(
+        String url,
+        String authorization,
+        String credentials,
+        boolean hedge,
+        Consumer<RequestOptions> customizer,
+        Function<HttpClientResponse, Future<T>> responseHandler
+    ) {
+        final long deadline = System.currentTimeMillis() + httpClientTimeout;
+        return exchange(url, authorization, credentials, hedge, customizer, responseHandler, deadline, 1);
+    }
+
+    private <T> Future<T> exchange(
+        String url,
+        String authorization,
+        String credentials,
+        boolean hedge,
+        Consumer<RequestOptions> customizer,
+        Function<HttpClientResponse, Future<T>> responseHandler,
+        long deadline,
+        int attempt
+    ) {
+        final BitbucketRateLimiter rateLimiter = BitbucketRateLimiter.shared();
+        return rateLimiter
+            .acquire(vertx, credentials, rateLimitRequestsPerHour / 3600d, rateLimitBurst, deadline)
+            .compose(v -> {
+                final BitbucketCircuitBreaker.Permit permit;
+                try {
+                    permit = circuitPermit(url);
+                } catch (BitbucketCircuitBreaker.CircuitOpenException e) {
+                    return Future.failedFuture(e);
+                }
+                final Future<T> exchanged = send(url, authorization, credentials, hedge, customizer, response -> {
+                    if (permit != null) {
+                        permit.responded(response.statusCode());
+                    }
+                    rateLimiter.observe(credentials, response);
+                    if (BitbucketRateLimiter.isThrottled(response.statusCode()) && attempt < retryMaxAttempts) {
+                        final long delay = retryDelay(response, attempt);
+                        if (System.currentTimeMillis() + delay < deadline) {
+                            log.debug("Bitbucket throttled '{}' (status {}), retrying in {} ms", url, response.statusCode(), delay);
+                            return Future.failedFuture(new RetryLater(delay));
+                        }
+                    }
+                    return responseHandler.apply(response);
+                });
+                if (permit != null) {
+                    // A no-op once the response has been received
+                    exchanged.onFailure(throwable -> permit.failed());
+                }
+                return exchanged;
+            })
+            .recover(throwable -> {
+                if (!(throwable instanceof RetryLater retryLater)) {
+                    return Future.failedFuture(throwable);
+                }
+                final Promise<Void> backoff = Promise.promise();
+                vertx.setTimer(Math.max(1, retryLater.delay), timerId -> backoff.complete());
+                return backoff
+                    .future()
+                    .compose(v -> exchange(url, authorization, credentials, hedge, customizer, responseHandler, deadline, attempt + 1));
+            });
+    }
+
+    /**
+     * Takes a request slot from the circuit breaker of the Bitbucket host and workspace, {@code null} when circuit breaking
+     * is disabled.
+     */
+    private BitbucketCircuitBreaker.Permit circuitPermit(String url) {
+        if (!circuitBreakerEnabled) {
+            return null;
+        }
+        return BitbucketCircuitBreaker.shared().acquire(
+            URI.create(url).getHost(),
+            plan.key().username(),
+            new BitbucketCircuitBreaker.Thresholds(
+                circuitBreakerWindowSize,
+                circuitBreakerFailureRateThreshold,
+                circuitBreakerSlowCallDuration,
+                circuitBreakerSlowCallRateThreshold,
+                circuitBreakerOpenDuration,
+                circuitBreakerHalfOpenCalls
+            )
+        );
+    }
+
+    private long retryDelay(HttpClientResponse response, int attempt) {
+        final long retryAfter = BitbucketRateLimiter.retryAfter(response, System.currentTimeMillis());
+        if (retryAfter >= 0) {
+            return retryAfter;
+        }
+        final long backoff = retryInitialBackoff << Math.min(attempt - 1, 16);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Sends a GET request to Bitbucket through the shared HTTP client of the target host, and hands the response to
+     * {@code responseHandler}. The client is released once the future returned by the handler completes.
+     */
+    private <T> Future<T> send(
+        String url,
+        String authorization,
+        String credentials,
+        boolean hedge,
+        Consumer<RequestOptions> customizer,
+        Function<HttpClientResponse, Future<T>> responseHandler
+    ) {
+        Promise<T> promise = Promise.promise();
 
         try {
+            URI requestUri = URI.create(url);
+            final BitbucketHttpClientRegistry.Key clientKey = clientKey(requestUri);
+            final HttpClient httpClient = acquireClient(clientKey);
+            final BitbucketMetrics.Observation observation = metrics().request(
+                bitbucketFetcherConfiguration.getUsername(),
+                bitbucketFetcherConfiguration.getRepository()
+            );
+            // Release the shared HTTP client exactly once when the promise completes, regardless of success or failure,
+            // or once a streamed body has been fully read
+            promise
+                .future()
+                .onComplete(ar -> {
+                    if (ar.succeeded() && ar.result() instanceof ResponseInputStream stream) {
+                        stream
+                            .completion()
+                            .onComplete(done -> {
+                                releaseClient(clientKey);
+                                observation.complete(stream.received(), done.cause());
+                            });
+                    } else {
+                        releaseClient(clientKey);
+                        observation.complete(ar.result() instanceof Buffer body ? body.length() : -1, ar.cause());
+                    }
+                });
+
             final RequestOptions reqOptions = new RequestOptions()
                 .setMethod(HttpMethod.GET)
-                .setPort(port)
+                .setPort(clientKey.port())
                 .setHost(requestUri.getHost())
-                .setURI(requestUri.getPath())
+                .setURI(requestUri.getRawQuery() == null ? requestUri.getPath() : requestUri.getPath() + '?' + requestUri.getRawQuery())
                 .putHeader(io.gravitee.common.http.HttpHeaders.USER_AGENT, NodeUtils.userAgent(node))
                 .putHeader("X-Gravitee-Request-Id", UUID.toString(UUID.random()))
                 .setTimeout(httpClientTimeout)
                 .setFollowRedirects(true);
 
-            if (bitbucketFetcherConfiguration.getLogin() != null && bitbucketFetcherConfiguration.getPassword() != null) {
-                String encoding = Base64.getEncoder().encodeToString(
-                    (bitbucketFetcherConfiguration.getLogin() + ":" + bitbucketFetcherConfiguration.getPassword()).getBytes(
-                        StandardCharsets.UTF_8
-                    )
-                );
-                reqOptions.putHeader("Authorization", "Basic " + encoding);
+            if (authorization != null) {
+                reqOptions.putHeader("Authorization", authorization);
             }
+            customizer.accept(reqOptions);
 
-            httpClient
-                .request(reqOptions)
-                .compose(HttpClientRequest::send)
-                .compose(response -> handleResponse(url, response))
+            serverAddress(clientKey)
+                .compose(address -> {
+                    if (address == null) {
+                        return request(httpClient, reqOptions, credentials, hedge);
+                    }
+                    reqOptions.setServer(SocketAddress.inetSocketAddress(clientKey.port(), address.getHostAddress()));
+                    return request(httpClient, reqOptions, credentials, hedge).onFailure(throwable -> {
+                        if (throwable instanceof ConnectException) {
+                            // The next requests try the next address of the host
+                            BitbucketDnsCache.shared().unreachable(clientKey.host(), address);
+                        }
+                    });
+                })
+                .compose(response -> {
+                    observation.responded(response.statusCode());
+                    return responseHandler.apply(response);
+                })
                 .onSuccess(promise::complete)
                 .onFailure(promise::fail);
         } catch (Exception ex) {
-            promise.fail(ex);
+            promise.tryFail(ex);
+        }
+
+        return promise.future();
+    }
+
+    /** Sends the request through the client, hedged in hedging mode when {@code hedge} is set. */
+    private Future<HttpClientResponse> request(HttpClient httpClient, RequestOptions reqOptions, String credentials, boolean hedge) {
+        if (!hedge || !hedgingEnabled) {
+            return httpClient.request(reqOptions).compose(HttpClientRequest::send);
+        }
+        return BitbucketHedging.shared().send(
+            vertx,
+            reqOptions.getHost(),
+            new BitbucketHedging.Policy(hedgingPercentile, hedgingMinDelay, hedgingBudget),
+            () -> httpClient.request(reqOptions),
+            () -> hedgeAllowed(credentials),
+            won -> metrics().hedged(bitbucketFetcherConfiguration.getUsername(), bitbucketFetcherConfiguration.getRepository(), won)
+        );
+    }
+
+    /** Whether a hedge can be sent right away: it takes a request slot from the rate limiter, without waiting for one. */
+    private boolean hedgeAllowed(String credentials) {
+        return BitbucketRateLimiter.shared().tryAcquire(credentials, rateLimitRequestsPerHour / 3600d, rateLimitBurst);
+    }
+
+    private BitbucketHttpClientRegistry.Key clientKey(URI requestUri) {
+        final int port = requestUri.getPort() != -1
+            ? requestUri.getPort()
+            : (HTTPS_SCHEME.equals(requestUri.getScheme()) ? 443 : 80);
+        final String scheme = requestUri.getScheme().toLowerCase();
+        return new BitbucketHttpClientRegistry.Key(vertx, scheme, requestUri.getHost(), port, proxy(requestUri), clientSettings());
+    }
+
+    private BitbucketHttpClientRegistry.Settings clientSettings() {
+        return new BitbucketHttpClientRegistry.Settings(
+            poolMaxSize,
+            poolIdleTimeout,
+            httpClientTimeout,
+            http2Enabled,
+            http2MaxConnections,
+            http2MaxStreams,
+            sslTrustAll,
+            sslTruststoreType,
+            sslTruststorePath,
+            sslTruststorePassword,
+            sslOpenSsl
+        );
+    }
+
+    private HttpClient acquireClient(BitbucketHttpClientRegistry.Key clientKey) {
+        return BitbucketHttpClientRegistry.acquire(clientKey, () -> createHttpClient(clientKey));
+    }
+
+    /**
+     * Releases a shared HTTP client. An unused HTTPS client is kept for {@code ssl.clientLinger} at least, so that the
+     * connections the next scheduled fetch opens resume the TLS sessions cached by its SSL context instead of paying a full
+     * handshake.
+     */
+    private void releaseClient(BitbucketHttpClientRegistry.Key clientKey) {
+        final long linger = HTTPS_SCHEME.equals(clientKey.scheme()) ? Math.max(poolIdleTimeout, sslClientLinger) : poolIdleTimeout;
+        BitbucketHttpClientRegistry.release(clientKey, linger);
+    }
+
+    /**
+     * Resolves the Bitbucket host through the DNS cache, completing with {@code null} when the HTTP client resolves it
+     * itself: DNS caching disabled, address literal, or proxy (which resolves the host).
+     */
+    private Future<InetAddress> serverAddress(BitbucketHttpClientRegistry.Key clientKey) {
+        final String host = clientKey.host();
+        if (dnsCacheTtl <= 0 || clientKey.proxy() != null || host.contains(":") || NetUtil.isValidIpV4Address(host)) {
+            return Future.succeededFuture();
+        }
+        return BitbucketDnsCache.shared().resolve(vertx, host, dnsCacheTtl);
+    }
+
+    /**
+     * Opens {@code warmup.connections} idle connections to the Bitbucket host of the plan, with its address resolved, each
+     * time its shared client is created, so that the first scheduled fetches after a start do not all pay a TCP/TLS
+     * handshake. Warm-up requests are {@code HEAD} requests to the repository, paced by the rate limiter and accounted by the
+     * circuit breaker like any other request.
+     */
+    private void warmUp(RequestPlan plan) {
+        if (warmupConnections <= 0 || vertx == null) {
+            return;
+        }
+        final BitbucketHttpClientRegistry.Key clientKey = clientKey(URI.create(plan.repositoryUrl()));
+        if (BitbucketHttpClientRegistry.isWarmedUp(clientKey)) {
+            return;
+        }
+        // Keeps the client, and the connections warmed up, until the requests are answered
+        acquireClient(clientKey);
+        if (!BitbucketHttpClientRegistry.markWarmedUp(clientKey)) {
+            releaseClient(clientKey);
+            return;
+        }
+        final List<Future<Buffer>> connections = new ArrayList<>(warmupConnections);
+        for (int i = 0; i < warmupConnections; i++) {
+            // Concurrent requests, each on its own connection, left idle in the pool once answered
+            connections.add(
+                exchange(
+                    plan.repositoryUrl(),
+                    authorization,
+                    plan.credentials(),
+                    reqOptions -> reqOptions.setMethod(HttpMethod.HEAD),
+                    HttpClientResponse::body
+                )
+            );
+        }
+        Future.join(connections).onComplete(ar -> {
+            releaseClient(clientKey);
+            if (ar.failed()) {
+                log.debug("Unable to warm up the connections to {}: {}", clientKey.host(), ar.cause().getMessage());
+            } else {
+                log.debug("Warmed up {} connections to {}", warmupConnections, clientKey.host());
+            }
+        });
+    }
+
+    private static String authorizationHeader(String login, String password) {
+        if (login == null || password == null) {
+            return null;
+        }
+        String encoding = Base64.getEncoder().encodeToString((login + ":" + password).getBytes(StandardCharsets.UTF_8));
+        return "Basic " + encoding;
+    }
+
+    /**
+     * Identifies the credentials used for a fetch without keeping them: plans and cached content are keyed by it, so cached
+     * content is only served to the same credentials.
+     */
+    private static String credentialsFingerprint(String authorization) throws NoSuchAlgorithmException {
+        if (authorization == null) {
+            return "";
+        }
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private BitbucketHttpClientRegistry.Proxy proxy(URI requestUri) {
+        if (!bitbucketFetcherConfiguration.isUseSystemProxy()) {
+            return null;
+        }
+        if (HTTPS_SCHEME.equals(requestUri.getScheme())) {
+            return new BitbucketHttpClientRegistry.Proxy(
+                httpClientProxyType,
+                httpClientProxyHttpsHost,
+                httpClientProxyHttpsPort,
+                httpClientProxyHttpsUsername,
+                httpClientProxyHttpsPassword
+            );
+        }
+        return new BitbucketHttpClientRegistry.Proxy(
+            httpClientProxyType,
+            httpClientProxyHttpHost,
+            httpClientProxyHttpPort,
+            httpClientProxyHttpUsername,
+            httpClientProxyHttpPassword
+        );
+    }
+
+    private HttpClient createHttpClient(BitbucketHttpClientRegistry.Key clientKey) {
+        final boolean ssl = HTTPS_SCHEME.equals(clientKey.scheme());
+        final BitbucketHttpClientRegistry.Settings settings = clientKey.settings();
+        final int idleTimeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(settings.poolIdleTimeout()));
+        final HttpClientOptions options = new HttpClientOptions()
+            .setSsl(ssl)
+            .setKeepAlive(true)
+            .setKeepAliveTimeout(idleTimeoutSeconds)
+            .setTcpKeepAlive(true)
+            .setConnectTimeout(settings.connectTimeout())
+            .setIdleTimeout(idleTimeoutSeconds)
+            .setIdleTimeoutUnit(TimeUnit.SECONDS);
+
+        final PoolOptions poolOptions = new PoolOptions().setHttp1MaxSize(settings.poolMaxSize());
+
+        if (ssl) {
+            configureSsl(options, settings);
+        }
+
+        if (ssl && settings.http2()) {
+            // ALPN negotiates HTTP/2 when Bitbucket supports it and falls back to HTTP/1.1 otherwise
+            options
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setUseAlpn(true)
+                .setHttp2MultiplexingLimit(settings.http2MaxStreams())
+                .setHttp2KeepAliveTimeout(idleTimeoutSeconds);
+            poolOptions.setHttp2MaxSize(settings.http2MaxConnections());
+        }
+
+        final BitbucketHttpClientRegistry.Proxy proxy = clientKey.proxy();
+        if (proxy != null) {
+            ProxyOptions proxyOptions = new ProxyOptions();
+            proxyOptions.setType(ProxyType.valueOf(proxy.type()));
+            proxyOptions.setHost(proxy.host());
+            proxyOptions.setPort(proxy.port());
+            proxyOptions.setUsername(proxy.username());
+            proxyOptions.setPassword(proxy.password());
+            options.setProxyOptions(proxyOptions);
         }
 
-        return promise.future().toCompletionStage().toCompletableFuture();
+        return vertx.createHttpClient(options, poolOptions);
     }
 
-    private Future<Buffer> handleResponse(String url, HttpClientResponse response) {
+    private static void configureSsl(HttpClientOptions options, BitbucketHttpClientRegistry.Settings settings) {
+        final String truststorePath = settings.truststorePath();
+        if (settings.trustAll()) {
+            options.setTrustAll(true);
+        } else if (truststorePath != null && !truststorePath.isBlank()) {
+            options.setTrustOptions(
+                switch (settings.truststoreType().toUpperCase(Locale.ROOT)) {
+                    case "PEM" -> new PemTrustOptions().addCertPath(truststorePath);
+                    case "PKCS12" -> new PfxOptions().setPath(truststorePath).setPassword(settings.truststorePassword());
+                    case "JKS" -> new JksOptions().setPath(truststorePath).setPassword(settings.truststorePassword());
+                    default -> throw new IllegalArgumentException("Unsupported Bitbucket trust store type: " + settings.truststoreType());
+                }
+            );
+        }
+        // Without a trust store, certificates are validated against the trust store of the JVM
+
+        if (settings.openSsl()) {
+            if (OpenSSLEngineOptions.isAvailable()) {
+                options.setSslEngineOptions(new OpenSSLEngineOptions().setSessionCacheEnabled(true));
+            } else if (OPENSSL_UNAVAILABLE_LOGGED.compareAndSet(false, true)) {
+                log.warn("OpenSSL is not available (netty-tcnative is missing), using the JDK TLS engine to reach Bitbucket");
+            }
+        }
+    }
+
+    /**
+     * Time during which content fetched from a branch or tag is served without contacting Bitbucket. In push mode, content
+     * is invalidated when the ref is pushed to, so it is kept up to the safety net delay once pushes to the repository are
+     * known to be relayed.
+     */
+    private long contentTtl() {
+        return pushRelayed() ? Math.max(cacheTtl, pushSafetyNet) : cacheTtl;
+    }
+
+    /**
+     * Whether cached content can be kept until the repository is pushed to: push mode is enabled and a push to the repository
+     * has been received, so a webhook is relayed to the node. Without one, pushes would go unnoticed until the safety net.
+     */
+    private boolean pushRelayed() {
+        return pushEnabled && BitbucketPushHandler.isRelayed(plan.key().username(), plan.key().repository());
+    }
+
+    private BitbucketMetrics metrics() {
+        return BitbucketMetrics.shared(metricsMaxRepositories);
+    }
+
+    private BitbucketContentCache contentCache() {
+        return BitbucketContentCache.shared(cacheMaxEntries, cacheMaxSize);
+    }
+
+    private Future<Buffer> handleResponse(
+        String url,
+        String credentials,
+        HttpClientResponse response,
+        CachedContent cached,
+        boolean cacheable
+    ) {
         if (response.statusCode() == HttpStatusCode.OK_200) {
-            return response.body();
-        } else if (response.statusCode() == HttpStatusCode.NOT_FOUND_404) {
+            final String etag = response.getHeader("ETag");
+            final String lastModified = response.getHeader("Last-Modified");
+            return ResponseBodies.aggregate(response, maxBodyLength(response)).onSuccess(body ->
+                storeContent(url, credentials, body, etag, lastModified, cached, cacheable)
+            );
+        } else if (response.statusCode() == HttpStatusCode.NOT_MODIFIED_304 && cached != null) {
+            log.debug("Bitbucket content of '{}' has not changed, serving the cached content", url);
+            contentCache().put(url, credentials, cached.revalidated(System.currentTimeMillis()));
+            return Future.succeededFuture(Buffer.buffer(cached.content()));
+        } else {
+            return failure(url, response);
+        }
+    }
+
+    private <T> Future<T> failure(String url, HttpClientResponse response) {
+        if (response.statusCode() == HttpStatusCode.NOT_FOUND_404) {
             return Future.failedFuture(new ResourceNotFoundException(buildNotFoundMessage(url), null));
         } else {
             return Future.failedFuture(
@@ -299,13 +1744,41 @@ public class BitbucketFetcher implements Fetcher {
                         response.statusCode() +
                         ". Message: " +
                         response.statusMessage() +
-                        authenticationHint(response.statusCode()),
+                        authenticationHint(response.statusCode()) +
+                        rateLimitHint(response),
                     null
                 )
             );
         }
     }
 
+    private void storeContent(
+        String url,
+        String credentials,
+        Buffer body,
+        String etag,
+        String lastModified,
+        CachedContent cached,
+        boolean cacheable
+    ) {
+        if (cacheable || (conditionalRequestsEnabled && (etag != null || lastModified != null))) {
+            contentCache().put(url, credentials, new CachedContent(body.getBytes(), etag, lastModified, System.currentTimeMillis()));
+        } else if (cached != null) {
+            contentCache().invalidate(url);
+        }
+    }
+
+    private static String rateLimitHint(HttpClientResponse response) {
+        if (response.statusCode() != HttpStatusCode.TOO_MANY_REQUESTS_429) {
+            return "";
+        }
+        final long retryAfter = BitbucketRateLimiter.retryAfter(response, System.currentTimeMillis());
+        return (
+            ". Bitbucket rate limit exceeded for these credentials" +
+            (retryAfter >= 0 ? ", retry in " + TimeUnit.MILLISECONDS.toSeconds(retryAfter) + " seconds" : "")
+        );
+    }
+
     private static String authenticationHint(int statusCode) {
         if (statusCode == HttpStatusCode.UNAUTHORIZED_401) {
             return (
@@ -321,4 +1794,46 @@ public class BitbucketFetcher implements Fetcher {
         }
         return "";
     }
+
+    /** Content fetched for a file, shared by the fetchers coalesced on the same request. */
+    private static final class Fetched {
+
+        private final Buffer body;
+        /** Guarded by this. */
+        private String hash;
+
+        private Fetched(Buffer body) {
+            this.body = body;
+        }
+
+        Buffer body() {
+            return body;
+        }
+
+        /** The hash of the content, computed once for all the fetchers sharing it. */
+        synchronized String hash() {
+            if (hash == null) {
+                hash = contentHash(body == null ? new byte[0] : body.getBytes());
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Outcome of a lookup in the shared cache directory.
+     *
+     * @param current whether the stored content was fetched after the last push to its ref, see {@link BitbucketPushHandler#pushedAt}
+     */
+    private record SharedLookup(CachedContent stored, boolean current, boolean fresh, boolean leased) {}
+
+    /** Signals that a throttled request has to be sent again after {@code delay} milliseconds. */
+    private static final class RetryLater extends RuntimeException {
+
+        private final long delay;
+
+        private RetryLater(long delay) {
+            super(null, null, false, false);
+            this.delay = delay;
+        }
+    }
 }
@@ -16,7 +16,9 @@
 package io.gravitee.fetcher.bitbucket;
 
 import io.gravitee.fetcher.api.FetcherConfiguration;
+import io.gravitee.fetcher.api.FilepathAwareFetcherConfiguration;
 import io.gravitee.fetcher.api.Sensitive;
+import java.util.List;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -26,7 +28,7 @@ import lombok.Setter;
  */
 @Getter
 @Setter
-public class BitbucketFetcherConfiguration implements FetcherConfiguration {
+public class BitbucketFetcherConfiguration implements FetcherConfiguration, FilepathAwareFetcherConfiguration {
 
     private String bitbucketUrl;
 
@@ -41,6 +43,16 @@ public class BitbucketFetcherConfiguration implements FetcherConfiguration {
     private String repository;
     private String branchOrTag;
     private String filepath;
+
+    /**
+     * Glob patterns, relative to {@code filepath}, of the files to keep when importing a directory. All files are kept when
+     * empty.
+     */
+    private List<String> includes;
+
+    /** Glob patterns, relative to {@code filepath}, of the files to skip when importing a directory. */
+    private List<String> excludes;
+
     private String login;
 
     @Sensitive
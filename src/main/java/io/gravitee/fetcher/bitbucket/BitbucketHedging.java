@@ -0,0 +1,245 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide hedging of the requests sent to Bitbucket, so that a slow response does not hold up a fetch until the
+ * request timeout.
+ * <p>
+ * When the response headers of a request have not been received after a percentile of the recent response times of its
+ * host, an identical request is sent: the first response received wins and the other request is reset. Only GET requests
+ * are hedged, sending one twice is safe. The extra load is capped by a budget shared by all hosts: each request earns a
+ * fraction of a hedge, and a hedge is only sent once a whole one has been earned.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketHedging {
+
+    /** Number of response times kept per host. */
+    private static final int WINDOW_SIZE = 200;
+    /** Number of response times needed before hedging, the percentile is meaningless below. */
+    private static final int MIN_SAMPLES = 20;
+    /** Number of hedges that can be sent at once after a calm period. */
+    private static final double MAX_BUDGET = 10;
+
+    private static final BitbucketHedging SHARED = new BitbucketHedging();
+
+    private final Map<String, ResponseTimes> responseTimes = new ConcurrentHashMap<>();
+    /** Guarded by this. */
+    private double budget;
+
+    static BitbucketHedging shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sends the request opened by {@code open}, and an identical one if its response headers are not received in time.
+     *
+     * @param allowed checked right before a hedge is sent, e.g. against the rate limit
+     * @param hedged called once a response has been received if a hedge has been sent, with {@code true} when the hedge won
+     * @return the first response received, or the last failure if no response is received
+     */
+    Future<HttpClientResponse> send(
+        Vertx vertx,
+        String host,
+        Policy policy,
+        Supplier<Future<HttpClientRequest>> open,
+        BooleanSupplier allowed,
+        Consumer<Boolean> hedged
+    ) {
+        earn(policy.budget());
+        final ResponseTimes times = responseTimes.computeIfAbsent(host, k -> new ResponseTimes());
+        final Race race = new Race(times, open, hedged);
+        race.start(false);
+
+        final long delay = times.delay(policy.percentile(), policy.minDelay());
+        if (delay >= 0) {
+            final long timerId = vertx.setTimer(delay, id -> {
+                if (race.pending() && spend()) {
+                    if (allowed.getAsBoolean()) {
+                        race.start(true);
+                    } else {
+                        refund();
+                    }
+                }
+            });
+            race.winner.future().onComplete(ar -> vertx.cancelTimer(timerId));
+        }
+        return race.winner.future();
+    }
+
+    void clear() {
+        responseTimes.clear();
+        synchronized (this) {
+            budget = 0;
+        }
+    }
+
+    private synchronized void earn(int percentage) {
+        budget = Math.min(MAX_BUDGET, budget + percentage / 100d);
+    }
+
+    private synchronized boolean spend() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    private synchronized void refund() {
+        budget += 1;
+    }
+
+    /**
+     * @param percentile percentile of the recent response times of the host after which a request is hedged
+     * @param minDelay minimum time in milliseconds before a request is hedged
+     * @param budget percentage of the requests that can be hedged
+     */
+    record Policy(int percentile, long minDelay, int budget) {}
+
+    /** The last response times of a host, as a ring. */
+    private static final class ResponseTimes {
+
+        private final long[] times = new long[WINDOW_SIZE];
+        private int recorded;
+        private int next;
+
+        synchronized void record(long time) {
+            times[next] = time;
+            next = (next + 1) % times.length;
+            recorded = Math.min(recorded + 1, times.length);
+        }
+
+        synchronized long delay(int percentile, long minDelay) {
+            if (recorded < MIN_SAMPLES) {
+                return -1;
+            }
+            final long[] sorted = Arrays.copyOf(times, recorded);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(Math.min(100, Math.max(0, percentile)) * recorded / 100d) - 1;
+            return Math.max(minDelay, sorted[Math.max(0, index)]);
+        }
+    }
+
+    /** A request and its possible hedge, completed by the first response received. */
+    private static final class Race {
+
+        private final ResponseTimes times;
+        private final Supplier<Future<HttpClientRequest>> open;
+        private final Consumer<Boolean> hedged;
+        private final Promise<HttpClientResponse> winner = Promise.promise();
+        private final long start = System.currentTimeMillis();
+
+        /** Guarded by this. */
+        private final List<HttpClientRequest> requests = new ArrayList<>(2);
+        private int running;
+        private boolean hedgeSent;
+        private boolean decided;
+
+        private Race(ResponseTimes times, Supplier<Future<HttpClientRequest>> open, Consumer<Boolean> hedged) {
+            this.times = times;
+            this.open = open;
+            this.hedged = hedged;
+        }
+
+        /** Whether no response has been received yet while a request is still running. */
+        synchronized boolean pending() {
+            return running > 0 && !decided;
+        }
+
+        void start(boolean hedge) {
+            synchronized (this) {
+                running++;
+                hedgeSent |= hedge;
+            }
+            open
+                .get()
+                .compose(request -> {
+                    if (!register(request)) {
+                        request.reset();
+                        return Future.failedFuture("Bitbucket request already answered");
+                    }
+                    return request.send();
+                })
+                .onComplete(ar -> {
+                    if (ar.succeeded()) {
+                        responded(ar.result(), hedge);
+                    } else {
+                        failed(ar.cause());
+                    }
+                });
+        }
+
+        private synchronized boolean register(HttpClientRequest request) {
+            if (decided) {
+                return false;
+            }
+            requests.add(request);
+            return true;
+        }
+
+        private void responded(HttpClientResponse response, boolean hedge) {
+            final boolean won;
+            final boolean report;
+            final List<HttpClientRequest> losers;
+            synchronized (this) {
+                running--;
+                won = !decided;
+                decided = true;
+                report = won && hedgeSent;
+                losers = won ? requests.stream().filter(request -> request != response.request()).toList() : List.of();
+            }
+            if (!won) {
+                response.request().reset();
+                return;
+            }
+            // When the hedge wins, the first request has taken at least as long: its tail stays in the percentile
+            times.record(System.currentTimeMillis() - start);
+            losers.forEach(HttpClientRequest::reset);
+            if (report) {
+                hedged.accept(hedge);
+            }
+            winner.complete(response);
+        }
+
+        private void failed(Throwable throwable) {
+            final boolean last;
+            synchronized (this) {
+                running--;
+                last = running == 0 && !decided;
+                decided |= last;
+            }
+            if (last) {
+                winner.fail(throwable);
+            }
+        }
+    }
+}
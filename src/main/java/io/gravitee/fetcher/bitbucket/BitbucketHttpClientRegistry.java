@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import io.vertx.core.VerticleBase;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+import lombok.CustomLog;
+
+/**
+ * Process-wide registry of keep-alive {@link HttpClient}s shared by all {@link BitbucketFetcher} instances.
+ * <p>
+ * Fetchers are short-lived (one per fetch), so clients are reference-counted: each fetch acquires the client matching its
+ * {@link Key} and releases it once the response has been consumed. A client nobody references anymore is closed after a
+ * linger delay, which lets the next scheduled fetch reuse its pooled connections instead of paying a new TCP/TLS handshake.
+ * The clients of a Vert.x instance are all closed and forgotten when it is closed, lingering ones included: a verticle is
+ * deployed on each instance the first time it is used, and closes its clients when Vert.x undeploys it on close.
+ *
+ * @author GraviteeSource Team
+ */
+@CustomLog
+final class BitbucketHttpClientRegistry {
+
+    /** Guarded by itself. */
+    private static final Map<Key, SharedClient> CLIENTS = new HashMap<>();
+
+    /** Vert.x instances on which a {@link ClientsCloser} has been deployed. */
+    private static final Set<Vertx> HOOKED = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private BitbucketHttpClientRegistry() {}
+
+    static HttpClient acquire(Key key, Supplier<HttpClient> factory) {
+        if (HOOKED.add(key.vertx())) {
+            key
+                .vertx()
+                .deployVerticle(new ClientsCloser())
+                .onFailure(throwable -> log.warn("Unable to watch the closing of Vert.x, its Bitbucket clients stay open", throwable));
+        }
+        synchronized (CLIENTS) {
+            SharedClient shared = CLIENTS.computeIfAbsent(key, k -> new SharedClient(factory.get()));
+            if (shared.evictionTimerId != -1) {
+                key.vertx().cancelTimer(shared.evictionTimerId);
+                shared.evictionTimerId = -1;
+            }
+            shared.references++;
+            return shared.client;
+        }
+    }
+
+    /**
+     * Marks the registered client of the key as warmed up, returning {@code false} if it already was or is not registered.
+     * The mark goes away with the client: a client created again after being closed is warmed up again.
+     */
+    static boolean markWarmedUp(Key key) {
+        synchronized (CLIENTS) {
+            final SharedClient shared = CLIENTS.get(key);
+            if (shared == null || shared.warmedUp) {
+                return false;
+            }
+            shared.warmedUp = true;
+            return true;
+        }
+    }
+
+    static boolean isWarmedUp(Key key) {
+        synchronized (CLIENTS) {
+            final SharedClient shared = CLIENTS.get(key);
+            return shared != null && shared.warmedUp;
+        }
+    }
+
+    static void release(Key key, long lingerMs) {
+        synchronized (CLIENTS) {
+            SharedClient shared = CLIENTS.get(key);
+            if (shared == null || --shared.references > 0) {
+                return;
+            }
+            if (lingerMs <= 0) {
+                evict(key, shared);
+            } else {
+                shared.evictionTimerId = key.vertx().setTimer(lingerMs, timerId -> evict(key, shared));
+            }
+        }
+    }
+
+    /**
+     * Closes every registered client, whether in use or not. Meant for plugin teardown; fetches still in flight fail.
+     */
+    static void closeAll() {
+        synchronized (CLIENTS) {
+            CLIENTS.forEach((key, shared) -> shared.client.close());
+            CLIENTS.clear();
+        }
+    }
+
+    /** Closes the clients of the given Vert.x instance, whether in use or not. Called when the instance is closed. */
+    static void closeAll(Vertx vertx) {
+        final List<SharedClient> closed = new ArrayList<>();
+        synchronized (CLIENTS) {
+            CLIENTS.entrySet().removeIf(entry -> entry.getKey().vertx() == vertx && closed.add(entry.getValue()));
+        }
+        closed.forEach(shared -> shared.client.close());
+    }
+
+    static int size(Vertx vertx) {
+        synchronized (CLIENTS) {
+            return (int) CLIENTS.keySet().stream().filter(key -> key.vertx() == vertx).count();
+        }
+    }
+
+    private static void evict(Key key, SharedClient shared) {
+        synchronized (CLIENTS) {
+            if (shared.references > 0 || !CLIENTS.remove(key, shared)) {
+                return;
+            }
+        }
+        log.debug("Closing idle Bitbucket HTTP client for {}:{}", key.host(), key.port());
+        shared.client.close();
+    }
+
+    /**
+     * Identifies the clients that can be shared: one per Vert.x instance, target endpoint, proxy and client settings.
+     */
+    record Key(Vertx vertx, String scheme, String host, int port, Proxy proxy, Settings settings) {}
+
+    /**
+     * Pool, HTTP/2 and TLS settings a client was created with, so that a client is never reused with settings it was not
+     * created with, e.g. once the node configuration has been reloaded.
+     */
+    record Settings(
+        int poolMaxSize,
+        long poolIdleTimeout,
+        int connectTimeout,
+        boolean http2,
+        int http2MaxConnections,
+        int http2MaxStreams,
+        boolean trustAll,
+        String truststoreType,
+        String truststorePath,
+        String truststorePassword,
+        boolean openSsl
+    ) {
+        @Override
+        public String toString() {
+            return (
+                "Settings[poolMaxSize=" +
+                poolMaxSize +
+                ", http2=" +
+                http2 +
+                ", trustAll=" +
+                trustAll +
+                ", truststorePath=" +
+                truststorePath +
+                ", openSsl=" +
+                openSsl +
+                "]"
+            );
+        }
+    }
+
+    /**
+     * Proxy settings a client was created with, {@code null} in {@link Key} when no proxy is used.
+     */
+    record Proxy(String type, String host, int port, String username, String password) {
+        @Override
+        public String toString() {
+            return "Proxy[type=" + type + ", host=" + host + ", port=" + port + "]";
+        }
+    }
+
+    /** Closes the clients of its Vert.x instance when undeployed, which Vert.x does to every verticle when it is closed. */
+    private static final class ClientsCloser extends VerticleBase {
+
+        @Override
+        public Future<?> stop() throws Exception {
+            closeAll(vertx);
+            return super.stop();
+        }
+    }
+
+    private static final class SharedClient {
+
+        private final HttpClient client;
+        private int references;
+        private long evictionTimerId = -1;
+        private boolean warmedUp;
+
+        private SharedClient(HttpClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.gravitee.fetcher.api.ResourceNotFoundException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.SSLException;
+
+/**
+ * Meters of the requests sent to Bitbucket, registered in the registry of the node (the Vert.x metrics backend, or the
+ * Micrometer global registry when Vert.x metrics are disabled).
+ * <p>
+ * Meters are tagged by workspace and repository. To bound the cardinality, only the first {@code maxRepositories}
+ * repositories seen get their own tags, the others are reported as {@code other}.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketMetrics {
+
+    static final String FETCH = "gravitee.fetcher.bitbucket.fetch";
+    static final String REQUEST = "gravitee.fetcher.bitbucket.request";
+    static final String FIRST_BYTE = "gravitee.fetcher.bitbucket.request.first.byte";
+    static final String RESPONSE_SIZE = "gravitee.fetcher.bitbucket.response.size";
+    static final String ERRORS = "gravitee.fetcher.bitbucket.request.errors";
+    static final String ENCODED_SIZE = "gravitee.fetcher.bitbucket.response.encoded.size";
+    static final String DECODED_SIZE = "gravitee.fetcher.bitbucket.response.decoded.size";
+    static final String CIRCUIT_TRANSITIONS = "gravitee.fetcher.bitbucket.circuit.transitions";
+    static final String HEDGES = "gravitee.fetcher.bitbucket.request.hedges";
+    static final String CACHE_HITS = "gravitee.fetcher.bitbucket.cache.hits";
+    static final String CACHE_MISSES = "gravitee.fetcher.bitbucket.cache.misses";
+    static final String CACHE_EVICTIONS = "gravitee.fetcher.bitbucket.cache.evictions";
+    static final String CACHE_ENTRIES = "gravitee.fetcher.bitbucket.cache.entries";
+    static final String CACHE_SIZE = "gravitee.fetcher.bitbucket.cache.size";
+
+    private static final String OTHER = "other";
+
+    private static volatile BitbucketMetrics shared;
+
+    private final MeterRegistry registry;
+    private final Set<String> repositories = ConcurrentHashMap.newKeySet();
+    private volatile int maxRepositories = 100;
+    /** Whether the node setting has been applied, written while holding the class lock. */
+    private volatile boolean configured;
+
+    BitbucketMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    static BitbucketMetrics shared() {
+        BitbucketMetrics metrics = shared;
+        if (metrics == null) {
+            synchronized (BitbucketMetrics.class) {
+                if (shared == null) {
+                    final MeterRegistry registry = BackendRegistries.getDefaultNow();
+                    shared = new BitbucketMetrics(registry == null ? Metrics.globalRegistry : registry);
+                    shared.bind(BitbucketContentCache.shared());
+                }
+                metrics = shared;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the shared metrics, applying the given repository limit if it has not been configured yet: the limit is a node
+     * setting, the same for every fetcher, so it is only applied once instead of on every fetch.
+     */
+    static BitbucketMetrics shared(int maxRepositories) {
+        final BitbucketMetrics metrics = shared();
+        if (!metrics.configured) {
+            synchronized (BitbucketMetrics.class) {
+                if (!metrics.configured) {
+                    metrics.maxRepositories = maxRepositories;
+                    metrics.configured = true;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /** Reports the hits, misses, evictions and occupancy of the content cache, read from the cache when published. */
+    void bind(BitbucketContentCache cache) {
+        FunctionCounter.builder(CACHE_HITS, cache, BitbucketContentCache::hitCount)
+            .description("Fetches served from the in-memory content cache without contacting Bitbucket")
+            .register(registry);
+        FunctionCounter.builder(CACHE_MISSES, cache, BitbucketContentCache::missCount)
+            .description("Fetches the in-memory content cache could not serve")
+            .register(registry);
+        FunctionCounter.builder(CACHE_EVICTIONS, cache, BitbucketContentCache::evictionCount)
+            .description("Entries evicted from the in-memory content cache to fit its limits")
+            .register(registry);
+        Gauge.builder(CACHE_ENTRIES, cache, BitbucketContentCache::size)
+            .description("Number of entries of the in-memory content cache")
+            .register(registry);
+        Gauge.builder(CACHE_SIZE, cache, BitbucketContentCache::weight)
+            .description("Total size of the content held by the in-memory content cache")
+            .baseUnit("bytes")
+            .register(registry);
+    }
+
+    /** Starts observing a fetch of the given repository, whether served from Bitbucket or from the cache. */
+    Observation fetch(String workspace, String repository) {
+        return new Observation(FETCH, "Duration of Bitbucket fetches", repositoryTags(workspace, repository));
+    }
+
+    /** Starts observing a single HTTP request sent to Bitbucket for the given repository. */
+    Observation request(String workspace, String repository) {
+        return new Observation(REQUEST, "Duration of Bitbucket requests, body included", repositoryTags(workspace, repository));
+    }
+
+    private Tags repositoryTags(String workspace, String repository) {
+        if (workspace == null || repository == null) {
+            // Fetches of an incomplete configuration fail before any request, they do not take a repository slot
+            return Tags.of("workspace", OTHER, "repository", OTHER);
+        }
+        final String key = workspace + '/' + repository;
+        if (repositories.contains(key) || (repositories.size() < maxRepositories && repositories.add(key))) {
+            return Tags.of("workspace", workspace, "repository", repository);
+        }
+        return Tags.of("workspace", OTHER, "repository", OTHER);
+    }
+
+    /** Records the compressed and decoded sizes of a body received with the given content encoding. */
+    void decoded(String encoding, long encodedBytes, long decodedBytes) {
+        DistributionSummary.builder(ENCODED_SIZE)
+            .description("Size of the compressed bodies received from Bitbucket, as transferred")
+            .baseUnit("bytes")
+            .tags("encoding", encoding)
+            .register(registry)
+            .record(encodedBytes);
+        DistributionSummary.builder(DECODED_SIZE)
+            .description("Size of the compressed bodies received from Bitbucket, once decoded")
+            .baseUnit("bytes")
+            .tags("encoding", encoding)
+            .register(registry)
+            .record(decodedBytes);
+    }
+
+    /** Counts a state transition of the circuit breaker of a host and workspace. */
+    void circuitTransition(String host, String workspace, BitbucketCircuitBreaker.State from, BitbucketCircuitBreaker.State to) {
+        final Tags tags = Tags.of("host", host, "workspace", workspace, "from", from.name().toLowerCase(), "to", to.name().toLowerCase());
+        registry.counter(CIRCUIT_TRANSITIONS, tags).increment();
+    }
+
+    /** Counts a hedge sent for a slow request of the given repository, and whether its response arrived first. */
+    void hedged(String workspace, String repository, boolean won) {
+        registry.counter(HEDGES, repositoryTags(workspace, repository).and("outcome", won ? "won" : "lost")).increment();
+    }
+
+    /** Status class tag of a response status, {@code none} when no response has been received. */
+    static String statusClass(int status) {
+        return status <= 0 ? "none" : (status / 100) + "xx";
+    }
+
+    /** Error type tag of a failed request or fetch. */
+    static String errorType(int status, Throwable throwable) {
+        if (throwable instanceof ResponseBodies.ContentTooLargeException) {
+            return "too_large";
+        }
+        if (throwable instanceof BitbucketCircuitBreaker.CircuitOpenException) {
+            return "circuit_open";
+        }
+        if (status >= 400) {
+            return switch (status) {
+                case 401 -> "unauthorized";
+                case 403 -> "forbidden";
+                case 404 -> "not_found";
+                case 429 -> "rate_limited";
+                default -> status >= 500 ? "server_error" : "client_error";
+            };
+        }
+        if (throwable == null) {
+            return "none";
+        }
+        if (throwable instanceof ResourceNotFoundException) {
+            return "not_found";
+        }
+        if (throwable instanceof UnknownHostException) {
+            return "dns";
+        }
+        if (throwable instanceof ConnectException) {
+            return "connection";
+        }
+        if (throwable instanceof SSLException) {
+            return "tls";
+        }
+        if (throwable instanceof TimeoutException || throwable.getClass().getSimpleName().contains("Timeout")) {
+            return "timeout";
+        }
+        return "other";
+    }
+
+    /** Times a fetch or a request from its creation, and records its outcome once {@linkplain #complete completed}. */
+    final class Observation {
+
+        private final String name;
+        private final String description;
+        private final Tags tags;
+        private final long start = System.nanoTime();
+        private volatile int status;
+
+        private Observation(String name, String description, Tags tags) {
+            this.name = name;
+            this.description = description;
+            this.tags = tags;
+        }
+
+        /** Records that the response headers have been received. */
+        void responded(int status) {
+            this.status = status;
+            Timer.builder(FIRST_BYTE)
+                .description("Time until the response headers of a Bitbucket request are received")
+                .tags(tags)
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Records the outcome of the fetch or request.
+         *
+         * @param bytes number of body bytes received, ignored unless the response status is {@code 200}
+         * @param throwable the failure, {@code null} on success
+         */
+        void complete(long bytes, Throwable throwable) {
+            final String error = errorType(status, throwable);
+            // A fetch may be served without any request, only requests have a response status
+            final Tags outcomeTags = REQUEST.equals(name)
+                ? tags.and("status", statusClass(status), "error", error)
+                : tags.and("error", error);
+            Timer.builder(name)
+                .description(description)
+                .tags(outcomeTags)
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (bytes >= 0 && status == 200) {
+                DistributionSummary.builder(RESPONSE_SIZE)
+                    .description("Size of the bodies received from Bitbucket")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry)
+                    .record(bytes);
+            }
+            if (REQUEST.equals(name) && !"none".equals(error)) {
+                registry.counter(ERRORS, tags.and("error", error)).increment();
+            }
+        }
+    }
+}
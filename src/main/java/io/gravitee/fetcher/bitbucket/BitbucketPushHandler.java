@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.CustomLog;
+
+/**
+ * Invalidates what the fetchers of a repository cached when Bitbucket notifies a push through a {@code repo:push} webhook.
+ * <p>
+ * The webhook payload can be handed to {@link #handle(JsonObject)}, or sent on the Vert.x event bus to {@link #ADDRESS}
+ * once push mode is enabled. Only the latter reaches the other nodes of a cluster: each pushed branch or tag is broadcast
+ * on {@link #INVALIDATE_ADDRESS}, then published locally on {@link #CHANGED_ADDRESS} by every node once its caches are
+ * invalidated, so that the pages fetched from it can be refreshed right away instead of on their next scheduled fetch.
+ *
+ * @author GraviteeSource Team
+ */
+@CustomLog
+public final class BitbucketPushHandler {
+
+    /** Event bus address receiving {@code repo:push} webhook payloads, as a {@link JsonObject} or a JSON string. */
+    public static final String ADDRESS = "fetcher.bitbucket.push";
+
+    /** Event bus address on which every pushed ref is published, as a {@link Change#toJson() JSON object}. */
+    public static final String CHANGED_ADDRESS = "fetcher.bitbucket.changed";
+
+    /** Event bus address on which the node receiving a webhook broadcasts the pushed refs to the other nodes. */
+    static final String INVALIDATE_ADDRESS = "fetcher.bitbucket.invalidate";
+
+    /** Header of the broadcast pushed refs, so the node that received the webhook does not invalidate twice. */
+    private static final String ORIGIN_HEADER = "origin";
+    private static final String ORIGIN = UUID.randomUUID().toString();
+
+    /** Number of pushed refs whose last push time is kept. */
+    private static final int MAX_PUSHED = 10_000;
+
+    /** Time of the last push of each ref, by ref without commit and lower case repository. Guarded by itself. */
+    private static final Map<Change, Long> PUSHED = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Change, Long> eldest) {
+            return size() > MAX_PUSHED;
+        }
+    };
+
+    /** Lower case full names of the repositories a push has been received for, bounded like {@link #PUSHED}. */
+    private static final Set<String> RELAYED = ConcurrentHashMap.newKeySet();
+
+    private static final Set<Vertx> REGISTERED = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private BitbucketPushHandler() {}
+
+    /** Registers the event bus consumers of {@link #ADDRESS} and {@link #INVALIDATE_ADDRESS} on the given Vert.x instance, once. */
+    static void register(Vertx vertx) {
+        if (REGISTERED.add(vertx)) {
+            vertx.eventBus().consumer(ADDRESS, message -> onMessage(vertx, message));
+            vertx.eventBus().<JsonObject>consumer(INVALIDATE_ADDRESS, message -> onBroadcast(vertx, message));
+        }
+    }
+
+    private static void onMessage(Vertx vertx, Message<Object> message) {
+        final List<Change> changes;
+        try {
+            changes = handle(message.body() instanceof JsonObject payload ? payload : new JsonObject(String.valueOf(message.body())));
+        } catch (DecodeException | ClassCastException e) {
+            log.warn("Ignoring an invalid Bitbucket push payload: {}", e.getMessage());
+            message.fail(400, "Invalid Bitbucket push payload");
+            return;
+        }
+        final DeliveryOptions broadcast = new DeliveryOptions().addHeader(ORIGIN_HEADER, ORIGIN);
+        changes.forEach(change -> {
+            vertx.eventBus().publish(INVALIDATE_ADDRESS, change.toJson(), broadcast);
+            changed(vertx, change);
+        });
+        message.reply(changes.size());
+    }
+
+    private static void onBroadcast(Vertx vertx, Message<JsonObject> message) {
+        if (ORIGIN.equals(message.headers().get(ORIGIN_HEADER))) {
+            return;
+        }
+        final Change change = Change.fromJson(message.body());
+        if (change.repository() != null && change.ref() != null) {
+            invalidate(change);
+            changed(vertx, change);
+        }
+    }
+
+    /** Publishes the pushed ref to the consumers of this node only, each node publishes once its own caches are invalidated. */
+    private static void changed(Vertx vertx, Change change) {
+        vertx.eventBus().publish(CHANGED_ADDRESS, change.toJson(), new DeliveryOptions().setLocalOnly(true));
+    }
+
+    /**
+     * Invalidates the content and the ref resolutions cached on this node for the refs updated, created or deleted by a push.
+     *
+     * @param payload the body of a Bitbucket {@code repo:push} webhook
+     * @return the pushed refs
+     */
+    public static List<Change> handle(JsonObject payload) {
+        final JsonObject repository = payload.getJsonObject("repository");
+        final JsonObject push = payload.getJsonObject("push");
+        if (repository == null || repository.getString("full_name") == null || push == null) {
+            return List.of();
+        }
+
+        final String fullName = repository.getString("full_name");
+        final List<Change> changes = new ArrayList<>();
+        final JsonArray pushed = push.getJsonArray("changes", new JsonArray());
+        for (int i = 0; i < pushed.size(); i++) {
+            final JsonObject change = pushed.getJsonObject(i);
+            final JsonObject state = change.getJsonObject("new") != null ? change.getJsonObject("new") : change.getJsonObject("old");
+            if (state == null || state.getString("name") == null) {
+                continue;
+            }
+            final JsonObject target = change.getJsonObject("new") == null ? null : state.getJsonObject("target");
+            changes.add(new Change(fullName, state.getString("name"), target == null ? null : target.getString("hash")));
+        }
+
+        changes.forEach(BitbucketPushHandler::invalidate);
+        return changes;
+    }
+
+    private static void invalidate(Change change) {
+        final Change pushed = new Change(change.repository().toLowerCase(Locale.ROOT), change.ref(), null);
+        synchronized (PUSHED) {
+            // Re-inserted, so that the eldest entry is the least recently pushed ref
+            PUSHED.remove(pushed);
+            PUSHED.put(pushed, System.currentTimeMillis());
+        }
+        if (RELAYED.size() < MAX_PUSHED) {
+            RELAYED.add(pushed.repository());
+        }
+        final int invalidated = BitbucketContentCache.shared().invalidateIf(url -> isContent(url, change));
+        BitbucketCommitResolver.shared().invalidateIf(key -> isResolution(key, change));
+        log.debug("Bitbucket push to {}@{}, {} cached files invalidated", change.repository(), change.ref(), invalidated);
+    }
+
+    /**
+     * Returns the time of the last push to the ref the API URL targets, {@code 0} if none was received. Content stored outside
+     * of memory (on disk or shared with other nodes) and fetched before that time is outdated.
+     */
+    static long pushedAt(String url) {
+        long pushedAt = 0;
+        synchronized (PUSHED) {
+            for (Map.Entry<Change, Long> pushed : PUSHED.entrySet()) {
+                if (pushed.getValue() > pushedAt && isContent(url, pushed.getKey())) {
+                    pushedAt = pushed.getValue();
+                }
+            }
+        }
+        return pushedAt;
+    }
+
+    /**
+     * Whether a push to the repository has been received on this node, directly or from another node, which shows that its
+     * webhook is relayed to the event bus. Until then, a push could go unnoticed.
+     */
+    static boolean isRelayed(String workspace, String repository) {
+        return RELAYED.contains((workspace + '/' + repository).toLowerCase(Locale.ROOT));
+    }
+
+    static void clear() {
+        synchronized (PUSHED) {
+            PUSHED.clear();
+        }
+        RELAYED.clear();
+    }
+
+    /** Whether the API URL targets a file or directory at the pushed ref, e.g. {@code .../repositories/ws/repo/src/main/...}. */
+    static boolean isContent(String url, Change change) {
+        final String path = belowRepository(url, change.repository());
+        return path != null && path.startsWith("/src/" + change.ref() + '/');
+    }
+
+    /** Whether the key, {@code <repository URL>@<ref>#<credentials>}, is a resolution of the pushed ref. */
+    static boolean isResolution(String key, Change change) {
+        final String path = belowRepository(key, change.repository());
+        final int credentials = path == null ? -1 : path.lastIndexOf('#');
+        return credentials > 0 && path.startsWith("@") && path.substring(1, credentials).equals(change.ref());
+    }
+
+    /**
+     * Returns what follows {@code /repositories/<repository>} in the URL, {@code null} if it targets another repository.
+     * Repository slugs are case insensitive, refs are not.
+     */
+    private static String belowRepository(String url, String repository) {
+        final String prefix = "/repositories/";
+        final int start = url.indexOf(prefix);
+        if (start < 0 || !url.regionMatches(true, start + prefix.length(), repository, 0, repository.length())) {
+            return null;
+        }
+        return url.substring(start + prefix.length() + repository.length());
+    }
+
+    /**
+     * A branch or tag updated by a push.
+     *
+     * @param repository the full name of the repository ({@code workspace/repository})
+     * @param commit the commit the ref now points to, {@code null} when the ref has been deleted
+     */
+    public record Change(String repository, String ref, String commit) {
+        public JsonObject toJson() {
+            return new JsonObject().put("repository", repository).put("ref", ref).put("commit", commit);
+        }
+
+        static Change fromJson(JsonObject json) {
+            return new Change(json.getString("repository"), json.getString("ref"), json.getString("commit"));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.gravitee.common.http.HttpStatusCode;
+import io.gravitee.fetcher.api.FetcherException;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientResponse;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide pacing of the requests sent to Bitbucket, which throttles per account.
+ * <p>
+ * Each set of credentials gets a token bucket refilled at the configured rate, so that a burst of scheduled fetches is
+ * spread over time instead of being answered with {@code 429 Too Many Requests}. When Bitbucket does throttle, the
+ * {@code Retry-After} (or rate limit reset) it returns holds back every request made with the same credentials.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketRateLimiter {
+
+    private static final BitbucketRateLimiter SHARED = new BitbucketRateLimiter();
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    static BitbucketRateLimiter shared() {
+        return SHARED;
+    }
+
+    /**
+     * Completes once a request can be sent with the given credentials, or fails right away if that would be after
+     * {@code deadline}.
+     *
+     * @param requestsPerSecond sustained request rate, {@code 0} to only honor the delays requested by Bitbucket
+     * @param burst number of requests that can be sent at once after an idle period
+     */
+    Future<Void> acquire(Vertx vertx, String credentials, double requestsPerSecond, int burst, long deadline) {
+        final long now = System.currentTimeMillis();
+        final long wait = buckets.computeIfAbsent(credentials, k -> new Bucket(burst)).reserve(requestsPerSecond, burst, now, deadline);
+        if (wait < 0) {
+            return Future.failedFuture(new FetcherException("Bitbucket rate limit reached, no request slot available in time", null));
+        }
+        if (wait == 0) {
+            return Future.succeededFuture();
+        }
+        final Promise<Void> promise = Promise.promise();
+        vertx.setTimer(wait, timerId -> promise.complete());
+        return promise.future();
+    }
+
+    /** Takes a request slot for the given credentials if one is available right away, without waiting. */
+    boolean tryAcquire(String credentials, double requestsPerSecond, int burst) {
+        final long now = System.currentTimeMillis();
+        return buckets.computeIfAbsent(credentials, k -> new Bucket(burst)).reserve(requestsPerSecond, burst, now, now) == 0;
+    }
+
+    /**
+     * Records the throttling information of a response: requests made with the same credentials are held back until the
+     * time Bitbucket asks to wait for.
+     */
+    void observe(String credentials, HttpClientResponse response) {
+        final long now = System.currentTimeMillis();
+        long blockedUntil = -1;
+        if (isThrottled(response.statusCode())) {
+            final long retryAfter = retryAfter(response, now);
+            if (retryAfter > 0) {
+                blockedUntil = now + retryAfter;
+            }
+        } else if ("0".equals(response.getHeader("X-RateLimit-Remaining"))) {
+            final String reset = response.getHeader("X-RateLimit-Reset");
+            if (reset != null) {
+                try {
+                    blockedUntil = Long.parseLong(reset.trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // Unknown format, rely on the next 429 instead
+                }
+            }
+        }
+        if (blockedUntil > now) {
+            buckets.computeIfAbsent(credentials, k -> new Bucket(0)).blockUntil(blockedUntil);
+        }
+    }
+
+    void clear() {
+        buckets.clear();
+    }
+
+    /** Whether the status code means Bitbucket throttled the request and it can be retried later. */
+    static boolean isThrottled(int statusCode) {
+        return statusCode == HttpStatusCode.TOO_MANY_REQUESTS_429 || statusCode == HttpStatusCode.SERVICE_UNAVAILABLE_503;
+    }
+
+    /**
+     * Returns the delay in milliseconds requested by the {@code Retry-After} header of the response (in seconds or as an
+     * HTTP date), {@code -1} when absent or invalid.
+     */
+    static long retryAfter(HttpClientResponse response, long now) {
+        final String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                final ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - now);
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+
+    private static final class Bucket {
+
+        private double tokens;
+        private long refilledAt = System.currentTimeMillis();
+        private long blockedUntil;
+
+        private Bucket(int burst) {
+            this.tokens = burst;
+        }
+
+        /**
+         * Takes a token, possibly ahead of time, and returns how long to wait before using it, or {@code -1} without taking
+         * it if it would only be available after {@code deadline}.
+         */
+        synchronized long reserve(double requestsPerSecond, int burst, long now, long deadline) {
+            long wait = Math.max(0, blockedUntil - now);
+            if (requestsPerSecond > 0) {
+                tokens = Math.min(burst, tokens + ((now - refilledAt) * requestsPerSecond) / 1000d);
+                refilledAt = now;
+                if (tokens < 1) {
+                    wait = Math.max(wait, (long) Math.ceil(((1 - tokens) * 1000d) / requestsPerSecond));
+                }
+            }
+            if (now + wait > deadline) {
+                return -1;
+            }
+            if (requestsPerSecond > 0) {
+                tokens -= 1;
+            }
+            return wait;
+        }
+
+        synchronized void blockUntil(long blockedUntil) {
+            this.blockedUntil = Math.max(this.blockedUntil, blockedUntil);
+        }
+    }
+}
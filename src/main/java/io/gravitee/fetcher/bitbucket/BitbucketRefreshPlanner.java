@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide record of the commit each file was last fetched at, and of the paths changed between two commits of a
+ * repository, so that when a ref moves only the files actually changed by the new commits are downloaded again.
+ * <p>
+ * The changed paths between two commits are looked up once for all the files of the repository, concurrent lookups being
+ * coalesced, and kept since commits never change.
+ *
+ * @author GraviteeSource Team
+ */
+final class BitbucketRefreshPlanner {
+
+    private static final int MAX_DIFFS = 1_000;
+
+    private static final BitbucketRefreshPlanner SHARED = new BitbucketRefreshPlanner();
+
+    private final Map<String, String> lastSeen = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> diffs = new ConcurrentHashMap<>();
+    private final SingleFlight<Set<String>> lookups = new SingleFlight<>();
+
+    static BitbucketRefreshPlanner shared() {
+        return SHARED;
+    }
+
+    /** Returns the commit the file was last fetched at, {@code null} if it has never been fetched. */
+    String lastSeen(String file) {
+        return lastSeen.get(file);
+    }
+
+    /** Records that the file has been fetched at the given commit. */
+    void seen(String file, String commit) {
+        lastSeen.put(file, commit);
+    }
+
+    /**
+     * Returns the paths changed between two commits of the repository, either side of a rename included, running
+     * {@code lookup} (or joining the lookup already in flight) if they are not known yet.
+     */
+    Future<Set<String>> changedPaths(String repository, String from, String to, Supplier<Future<Set<String>>> lookup) {
+        final String key = repository + '@' + from + ".." + to;
+        final Set<String> changed = diffs.get(key);
+        if (changed != null) {
+            return Future.succeededFuture(changed);
+        }
+        return lookups.run(key, () ->
+            lookup
+                .get()
+                .onSuccess(paths -> {
+                    if (diffs.size() >= MAX_DIFFS) {
+                        // Diffs are only useful right after a ref moved, a crude bound is enough
+                        diffs.clear();
+                    }
+                    diffs.put(key, paths);
+                })
+        );
+    }
+
+    void clear() {
+        lastSeen.clear();
+        diffs.clear();
+    }
+}
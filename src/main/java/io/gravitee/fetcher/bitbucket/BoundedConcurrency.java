@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Applies an asynchronous operation to a list of items with at most {@code concurrency} operations in flight.
+ *
+ * @author GraviteeSource Team
+ */
+final class BoundedConcurrency<T, R> {
+
+    private final List<T> items;
+    private final Function<T, Future<R>> operation;
+    private final Object[] results;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final Promise<List<R>> promise = Promise.promise();
+
+    private BoundedConcurrency(List<T> items, Function<T, Future<R>> operation) {
+        this.items = items;
+        this.operation = operation;
+        this.results = new Object[items.size()];
+        this.remaining = new AtomicInteger(items.size());
+    }
+
+    /**
+     * Completes with the results in the order of {@code items}, or fails with the first failure, in which case no further
+     * operation is started.
+     */
+    static <T, R> Future<List<R>> map(List<T> items, int concurrency, Function<T, Future<R>> operation) {
+        if (items.isEmpty()) {
+            return Future.succeededFuture(List.of());
+        }
+        final BoundedConcurrency<T, R> execution = new BoundedConcurrency<>(items, operation);
+        for (int i = 0; i < Math.min(Math.max(1, concurrency), items.size()); i++) {
+            execution.drain();
+        }
+        return execution.promise.future();
+    }
+
+    /** Runs operations until one is still pending; operations completing synchronously do not grow the stack. */
+    private void drain() {
+        while (!promise.future().isComplete()) {
+            final int index = next.getAndIncrement();
+            if (index >= items.size()) {
+                return;
+            }
+            Future<R> future;
+            try {
+                future = operation.apply(items.get(index));
+            } catch (RuntimeException e) {
+                future = Future.failedFuture(e);
+            }
+            if (!future.isComplete()) {
+                future.onComplete(ar -> {
+                    complete(index, ar);
+                    drain();
+                });
+                return;
+            }
+            complete(index, future);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(int index, AsyncResult<R> result) {
+        if (result.failed()) {
+            promise.tryFail(result.cause());
+            return;
+        }
+        synchronized (results) {
+            results[index] = result.result();
+        }
+        if (remaining.decrementAndGet() == 0) {
+            synchronized (results) {
+                promise.tryComplete(new ArrayList<>((List<R>) Arrays.asList(results)));
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+/**
+ * Content of a file fetched from Bitbucket, along with the validators Bitbucket returned for it.
+ * The content array is never modified once cached: callers get their own stream over it.
+ *
+ * @param content the raw file content
+ * @param etag value of the {@code ETag} response header, may be {@code null}
+ * @param lastModified value of the {@code Last-Modified} response header, may be {@code null}
+ * @param fetchedAt time, in milliseconds since the epoch, at which Bitbucket last returned or confirmed this content
+ *
+ * @author GraviteeSource Team
+ */
+record CachedContent(byte[] content, String etag, String lastModified, long fetchedAt) {
+    boolean isFresh(long ttl, long now) {
+        return ttl > 0 && now - fetchedAt < ttl;
+    }
+
+    CachedContent revalidated(long now) {
+        return new CachedContent(content, etag, lastModified, now);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.gravitee.fetcher.api.FetcherException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import java.util.Locale;
+
+/**
+ * Decodes a compressed response body chunk by chunk as it is received, so that neither the compressed nor the decoded body
+ * has to be held in memory as a whole. Supports {@code gzip} and {@code deflate}, and {@code br} when Brotli is available.
+ * <p>
+ * Bodies are decoded by the fetcher rather than by the HTTP client, so that the decoded size can be capped and the
+ * compressed size reported. A decoder is bound to the event loop of its response.
+ * <p>
+ * The zlib decoders are given the limit as their maximum allocation. The Brotli decoder has no such limit: it is fed small
+ * slices of each chunk, and its output past the limit is dropped, so that a highly compressed chunk is neither held in
+ * memory nor decoded to its end.
+ *
+ * @author GraviteeSource Team
+ */
+final class ContentDecoder {
+
+    /** Number of compressed bytes handed to the Brotli decoder at once, whose output is checked in between. */
+    private static final int BROTLI_SLICE_SIZE = 1024;
+
+    private final String encoding;
+    private final EmbeddedChannel channel;
+    private final int sliceSize;
+    /** {@code null} when the decoder enforces the limit itself. */
+    private final OutputLimit limit;
+    private long encodedBytes;
+    private long decodedBytes;
+
+    private ContentDecoder(String encoding, EmbeddedChannel channel) {
+        this(encoding, channel, Integer.MAX_VALUE, null);
+    }
+
+    private ContentDecoder(String encoding, EmbeddedChannel channel, int sliceSize, OutputLimit limit) {
+        this.encoding = encoding;
+        this.channel = channel;
+        this.sliceSize = sliceSize;
+        this.limit = limit;
+    }
+
+    /** Value of the {@code Accept-Encoding} header advertising the supported encodings. */
+    static String acceptEncoding() {
+        return Brotli.isAvailable() ? "gzip, deflate, br" : "gzip, deflate";
+    }
+
+    /**
+     * Returns a decoder of the body of the response, {@code null} when it is not encoded.
+     *
+     * @param maxLength maximum number of decoded bytes, {@code 0} for no limit. The caller checks the decoded size after each
+     * chunk, the decoder makes sure a single chunk cannot expand past it.
+     * @throws FetcherException if the body is encoded with an unsupported encoding
+     */
+    static ContentDecoder of(HttpClientResponse response, long maxLength) throws FetcherException {
+        final String contentEncoding = response.getHeader("Content-Encoding");
+        if (contentEncoding == null) {
+            return null;
+        }
+        final String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        final int maxAllocation = (int) Math.min(maxLength, Integer.MAX_VALUE);
+        return switch (encoding) {
+            case "", "identity" -> null;
+            case "gzip", "x-gzip" -> new ContentDecoder(
+                "gzip",
+                new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP, maxAllocation))
+            );
+            // Some servers send raw deflate data instead of the zlib format the specification requires
+            case "deflate" -> new ContentDecoder(
+                "deflate",
+                new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB_OR_NONE, maxAllocation))
+            );
+            case "br" -> {
+                if (!Brotli.isAvailable()) {
+                    throw new FetcherException("Bitbucket content is encoded with Brotli, which is not available", null);
+                }
+                if (maxLength <= 0) {
+                    yield new ContentDecoder("br", new EmbeddedChannel(new BrotliDecoder()));
+                }
+                final OutputLimit limit = new OutputLimit(maxLength);
+                yield new ContentDecoder("br", new EmbeddedChannel(new BrotliDecoder(), limit), BROTLI_SLICE_SIZE, limit);
+            }
+            default -> throw new FetcherException("Unsupported Bitbucket content encoding: " + contentEncoding, null);
+        };
+    }
+
+    /**
+     * Decodes a chunk of the body, returning the decoded bytes available so far, possibly none.
+     *
+     * @throws DecompressionException if the chunk is corrupted or expands past the limit
+     */
+    Buffer decode(Buffer chunk) {
+        encodedBytes += chunk.length();
+        final ByteBuf input = Unpooled.wrappedBuffer(chunk.getBytes());
+        final Buffer decoded = Buffer.buffer();
+        while (input.isReadable()) {
+            channel.writeInbound(input.readRetainedSlice(Math.min(sliceSize, input.readableBytes())));
+            if (limit != null && limit.exceeded) {
+                input.release();
+                throw new DecompressionException("Decoded content exceeds " + limit.maxLength + " bytes");
+            }
+            decoded.appendBuffer(drain());
+        }
+        input.release();
+        return decoded;
+    }
+
+    /** Decodes what remains once the whole body has been received, and reports the sizes of the body. */
+    Buffer finish() {
+        channel.finish();
+        if (limit != null && limit.exceeded) {
+            throw new DecompressionException("Decoded content exceeds " + limit.maxLength + " bytes");
+        }
+        final Buffer remaining = drain();
+        BitbucketMetrics.shared().decoded(encoding, encodedBytes, decodedBytes);
+        return remaining;
+    }
+
+    /** Releases the decoder when the body will not be read to its end. */
+    void close() {
+        channel.finishAndReleaseAll();
+    }
+
+    private Buffer drain() {
+        final Buffer decoded = Buffer.buffer();
+        ByteBuf output;
+        while ((output = channel.readInbound()) != null) {
+            try {
+                final byte[] bytes = new byte[output.readableBytes()];
+                output.readBytes(bytes);
+                decoded.appendBytes(bytes);
+            } finally {
+                output.release();
+            }
+        }
+        decodedBytes += decoded.length();
+        return decoded;
+    }
+
+    /** Drops the decoded output past the limit instead of queueing it, the decoding then fails. */
+    private static final class OutputLimit extends ChannelInboundHandlerAdapter {
+
+        private final long maxLength;
+        private long length;
+        private boolean exceeded;
+
+        private OutputLimit(long maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            final ByteBuf output = (ByteBuf) msg;
+            length += output.readableBytes();
+            exceeded |= length > maxLength;
+            if (exceeded) {
+                output.release();
+            } else {
+                ctx.fireChannelRead(output);
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.json.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.CustomLog;
+
+/**
+ * {@link SharedContentStore} keeping each entry in a file of a directory, either on storage mounted by every node or on
+ * local disk to survive restarts.
+ * <p>
+ * An entry file holds a JSON header line with the validators, followed by the content. It is written to a temporary file
+ * first and moved in place, so readers never see a partial entry. The content is read straight into its array, past the
+ * header. When a maximum size is set, the least recently used entries are deleted once the entries of the directory exceed
+ * it. Other nodes may write to the same directory, so its size is scanned again from time to time rather than only tracked
+ * from the writes of this node. Leases are lock files created exclusively, taken over once older than their duration.
+ *
+ * @author GraviteeSource Team
+ */
+@CustomLog
+final class FileContentStore implements SharedContentStore {
+
+    private static final Map<Path, FileContentStore> STORES = new ConcurrentHashMap<>();
+
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    /** Number of bytes read at once while looking for the end of the header line. */
+    private static final int HEADER_CHUNK_SIZE = 1024;
+
+    /** Time in milliseconds after which the size of the directory is scanned again. */
+    private static final long SCAN_INTERVAL = 60_000;
+
+    private final Path directory;
+    private volatile long maxSize;
+
+    /** Total size of the entry files, {@code -1} until the directory has been scanned. Guarded by {@code this}. */
+    private long size = -1;
+    private long scannedAt;
+
+    private FileContentStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /** Returns the store of the given directory, shared by all the fetchers of the node. */
+    static FileContentStore of(String directory) {
+        return STORES.computeIfAbsent(Path.of(directory).toAbsolutePath().normalize(), FileContentStore::new);
+    }
+
+    /** Forgets the stores of all directories, their files are kept. */
+    static void clear() {
+        STORES.clear();
+    }
+
+    /**
+     * @param maxSize maximum total size in bytes of the entries, {@code 0} for no limit
+     */
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public CachedContent read(String key) throws IOException {
+        final Path file = entryFile(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final byte[] headerBytes = readHeader(channel);
+            if (headerBytes == null) {
+                return null;
+            }
+            final JsonObject header = new JsonObject(new String(headerBytes, StandardCharsets.UTF_8));
+            if (!key.equals(header.getString("key"))) {
+                return null;
+            }
+            final long contentStart = headerBytes.length + 1L;
+            final byte[] content = new byte[Math.toIntExact(channel.size() - contentStart)];
+            readFully(channel, ByteBuffer.wrap(content), contentStart);
+            if (maxSize > 0) {
+                touch(file);
+            }
+            return new CachedContent(content, header.getString("etag"), header.getString("lastModified"), header.getLong("fetchedAt", 0L));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void write(String key, CachedContent content) throws IOException {
+        Files.createDirectories(directory);
+        final byte[] header = new JsonObject()
+            .put("key", key)
+            .put("etag", content.etag())
+            .put("lastModified", content.lastModified())
+            .put("fetchedAt", content.fetchedAt())
+            .encode()
+            .concat("\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+        final Path file = entryFile(key);
+        final Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(header);
+                out.write(content.content());
+            }
+            if (maxSize > 0) {
+                synchronized (this) {
+                    final long replaced = Files.exists(file) ? Files.size(file) : 0;
+                    final long written = Files.size(temporary);
+                    move(temporary, file);
+                    size = currentSize() - replaced + written;
+                    evict(file);
+                }
+            } else {
+                move(temporary, file);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public boolean tryLease(String key, long duration) throws IOException {
+        Files.createDirectories(directory);
+        final Path lease = leaseFile(key);
+        try {
+            Files.createFile(lease);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            final FileTime takenAt;
+            try {
+                takenAt = Files.getLastModifiedTime(lease);
+            } catch (NoSuchFileException released) {
+                return tryCreate(lease);
+            }
+            if (System.currentTimeMillis() - takenAt.toMillis() < duration) {
+                return false;
+            }
+            // Expired: whoever deletes it first gets to create it again
+            try {
+                Files.delete(lease);
+            } catch (NoSuchFileException alreadyDeleted) {
+                return false;
+            }
+            return tryCreate(lease);
+        }
+    }
+
+    @Override
+    public void releaseLease(String key) throws IOException {
+        Files.deleteIfExists(leaseFile(key));
+    }
+
+    /** Reads the header line of an entry, {@code null} if the entry has none. */
+    private static byte[] readHeader(FileChannel channel) throws IOException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final ByteBuffer chunk = ByteBuffer.allocate(HEADER_CHUNK_SIZE);
+        long position = 0;
+        int read;
+        while ((read = channel.read(chunk.clear(), position)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (chunk.get(i) == '\n') {
+                    header.write(chunk.array(), 0, i);
+                    return header.toByteArray();
+                }
+            }
+            header.write(chunk.array(), 0, read);
+            position += read;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the content straight into its array. Entries are handed out as heap arrays, so mapping the file would only add
+     * a copy out of the mapping, plus a mapping that stays open until collected and blocks deleting the file on Windows.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated entry");
+            }
+        }
+    }
+
+    /** Total size of the entry files, scanned from the directory every {@link #SCAN_INTERVAL}. Guarded by {@code this}. */
+    private long currentSize() throws IOException {
+        final long now = System.currentTimeMillis();
+        if (size < 0 || now - scannedAt >= SCAN_INTERVAL) {
+            long scanned = 0;
+            for (Path entry : entries()) {
+                scanned += sizeOf(entry);
+            }
+            size = scanned;
+            scannedAt = now;
+        }
+        return size;
+    }
+
+    /** Deletes the least recently used entries, but {@code keep}, until the entries fit in the maximum size. */
+    private void evict(Path keep) throws IOException {
+        if (size <= maxSize) {
+            return;
+        }
+        final List<Path> entries = entries();
+        entries.sort(Comparator.comparingLong(FileContentStore::lastModified));
+        for (Path entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (!entry.equals(keep)) {
+                final long length = sizeOf(entry);
+                try {
+                    if (Files.deleteIfExists(entry)) {
+                        size -= length;
+                        log.debug("Evicted {} ({} bytes) from the Bitbucket content cache directory", entry.getFileName(), length);
+                    }
+                } catch (IOException e) {
+                    log.debug("Unable to evict {} from the Bitbucket content cache directory", entry.getFileName(), e);
+                }
+            }
+        }
+    }
+
+    private List<Path> entries() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(ENTRY_SUFFIX)).collect(Collectors.toList());
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Deleted meanwhile, nothing to keep track of
+        }
+    }
+
+    private static boolean tryCreate(Path lease) throws IOException {
+        try {
+            Files.createFile(lease);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(hash(key) + ENTRY_SUFFIX);
+    }
+
+    private Path leaseFile(String key) {
+        return directory.resolve(hash(key) + ".lease");
+    }
+
+    private static String hash(String key) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Selects the files of a directory import: files under {@code directory} whose path relative to it matches one of the
+ * include glob patterns (any file when there is none) and none of the exclude patterns.
+ * <p>
+ * A leading {@code **}{@code /} also matches no directory at all, so that {@code **}{@code /*.md} selects the markdown
+ * files at the root of the directory as well as those of its subdirectories, as users expect from other glob tools.
+ *
+ * @author GraviteeSource Team
+ */
+final class FileSelector {
+
+    private final String directory;
+    private final PathMatcher[] includes;
+    private final PathMatcher[] excludes;
+
+    /**
+     * @param directory repository path of the directory, without leading or trailing slash, empty for the repository root
+     */
+    FileSelector(String directory, List<String> includes, List<String> excludes) {
+        this.directory = directory;
+        this.includes = matchers(includes);
+        this.excludes = matchers(excludes);
+    }
+
+    String directory() {
+        return directory;
+    }
+
+    /**
+     * @param file repository path of the file, without leading slash
+     */
+    boolean matches(String file) {
+        if (!directory.isEmpty() && !file.startsWith(directory + '/')) {
+            return false;
+        }
+        final Path relative = Path.of(directory.isEmpty() ? file : file.substring(directory.length() + 1));
+        return (
+            (includes.length == 0 || Arrays.stream(includes).anyMatch(matcher -> matcher.matches(relative))) &&
+            Arrays.stream(excludes).noneMatch(matcher -> matcher.matches(relative))
+        );
+    }
+
+    private static PathMatcher[] matchers(List<String> patterns) {
+        if (patterns == null) {
+            return new PathMatcher[0];
+        }
+        return patterns
+            .stream()
+            .filter(pattern -> pattern != null && !pattern.isBlank())
+            .map(String::trim)
+            .flatMap(pattern -> pattern.startsWith("**/") ? Stream.of(pattern, pattern.substring(3)) : Stream.of(pattern))
+            .map(pattern -> FileSystems.getDefault().getPathMatcher("glob:" + pattern))
+            .toArray(PathMatcher[]::new);
+    }
+}
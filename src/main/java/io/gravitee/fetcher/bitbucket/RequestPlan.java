@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything a fetch derives from its {@link BitbucketFetcherConfiguration}, validated and computed once per configuration
+ * instead of on every fetch: thousands of pages are refreshed with the same few configurations.
+ * <p>
+ * Plans are cached process-wide by {@link Key}, a snapshot of the configuration attributes they depend on, so a
+ * configuration that changes gets a new plan on its next fetch. Neither holds the credentials, only their fingerprint: the
+ * {@code Authorization} header is built by each fetch from its configuration.
+ *
+ * @param ref the trimmed branch, tag or commit, {@code master} when not set
+ * @param filepath the file path without leading slashes
+ * @param directory the file path without leading or trailing slashes, the directory of a directory import
+ * @param contentUrl the API URL of the file at {@code ref}
+ * @param cronInterval the shortest interval between two scheduled fetches in milliseconds, {@code 0} without auto fetch
+ * @author GraviteeSource Team
+ */
+record RequestPlan(
+    Key key,
+    String ref,
+    String filepath,
+    String directory,
+    String repositoryUrl,
+    String webUrl,
+    String contentUrl,
+    String editUrl,
+    long cronInterval
+) {
+    private static final int MAX_PLANS = 10_000;
+
+    /** Access-ordered, the least recently used plans are dropped beyond {@link #MAX_PLANS}. Guarded by itself. */
+    private static final Map<Key, RequestPlan> PLANS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, RequestPlan> eldest) {
+            return size() > MAX_PLANS;
+        }
+    };
+
+    /** Returns the plan compiled for the configuration, {@code null} if there is none yet. */
+    static RequestPlan lookup(Key key) {
+        synchronized (PLANS) {
+            return PLANS.get(key);
+        }
+    }
+
+    static RequestPlan register(RequestPlan plan) {
+        synchronized (PLANS) {
+            PLANS.put(plan.key(), plan);
+        }
+        return plan;
+    }
+
+    static void clear() {
+        synchronized (PLANS) {
+            PLANS.clear();
+        }
+    }
+
+    /** The fingerprint of the {@code Authorization} header of the fetch, see {@link BitbucketFetcher}. */
+    String credentials() {
+        return key.credentials();
+    }
+
+    /**
+     * The configuration attributes a plan depends on.
+     *
+     * @param credentials the fingerprint of the {@code Authorization} header built from the login and password
+     */
+    record Key(
+        String bitbucketUrl,
+        String username,
+        String repository,
+        String branchOrTag,
+        String filepath,
+        String credentials,
+        boolean autoFetch,
+        String fetchCron
+    ) {
+        static Key of(BitbucketFetcherConfiguration configuration, String credentials) {
+            return new Key(
+                configuration.getBitbucketUrl(),
+                configuration.getUsername(),
+                configuration.getRepository(),
+                configuration.getBranchOrTag(),
+                configuration.getFilepath(),
+                credentials,
+                configuration.isAutoFetch(),
+                configuration.getFetchCron()
+            );
+        }
+
+        @Override
+        public String toString() {
+            return "Key[bitbucketUrl=" + bitbucketUrl + ", repository=" + username + '/' + repository + ", filepath=" + filepath + "]";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestPlan[" + contentUrl + "]";
+    }
+}
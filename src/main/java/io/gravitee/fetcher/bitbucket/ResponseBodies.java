@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.gravitee.fetcher.api.FetcherException;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import java.util.function.Supplier;
+
+/**
+ * Reads response bodies while enforcing the maximum content length: a response announcing a larger {@code Content-Length} is
+ * aborted before its body is read, and a body growing past the limit is aborted as soon as it does. Compressed bodies are
+ * decoded as they are received, see {@link ContentDecoder}, and the limit applies to their decoded size.
+ *
+ * @author GraviteeSource Team
+ */
+final class ResponseBodies {
+
+    private ResponseBodies() {}
+
+    /**
+     * Aggregates the whole body in memory.
+     *
+     * @param maxLength maximum number of bytes accepted, {@code 0} for no limit
+     */
+    static Future<Buffer> aggregate(HttpClientResponse response, long maxLength) {
+        final ContentDecoder decoder;
+        try {
+            decoder = ContentDecoder.of(response, maxLength);
+        } catch (FetcherException e) {
+            response.request().reset();
+            return Future.failedFuture(e);
+        }
+        if (maxLength <= 0 && decoder == null) {
+            return response.body();
+        }
+        if (maxLength > 0 && announcedLength(response) > maxLength) {
+            response.request().reset();
+            return Future.failedFuture(tooLarge(maxLength));
+        }
+
+        final Promise<Buffer> promise = Promise.promise();
+        final Buffer body = Buffer.buffer();
+        response.exceptionHandler(promise::tryFail);
+        response.endHandler(v -> {
+            if (decoder != null) {
+                append(body, decoder::finish, maxLength, response, promise);
+            }
+            promise.tryComplete(body);
+        });
+        response.handler(chunk -> append(body, () -> decoder == null ? chunk : decoder.decode(chunk), maxLength, response, promise));
+        return decoder == null ? promise.future() : promise.future().onFailure(throwable -> decoder.close());
+    }
+
+    /** Appends a chunk, once decoded, to the body, unless it cannot be decoded or the body grows past the limit. */
+    private static void append(Buffer body, Supplier<Buffer> chunk, long maxLength, HttpClientResponse response, Promise<Buffer> promise) {
+        if (promise.future().isComplete()) {
+            return;
+        }
+        final Buffer decoded;
+        try {
+            decoded = chunk.get();
+        } catch (RuntimeException e) {
+            promise.tryFail(decodingFailure(e));
+            response.request().reset();
+            return;
+        }
+        if (maxLength > 0 && body.length() + decoded.length() > maxLength) {
+            promise.tryFail(tooLarge(maxLength));
+            response.request().reset();
+        } else {
+            body.appendBuffer(decoded);
+        }
+    }
+
+    /**
+     * Exposes the body as a blocking stream read as it is received, see {@link ResponseInputStream}.
+     *
+     * @param maxLength maximum number of bytes accepted, {@code 0} for no limit
+     * @param bufferSize number of bytes queued before the response is paused
+     * @param idleTimeout time in milliseconds after which a stream nobody reads is abandoned, {@code 0} for no limit
+     */
+    static Future<ResponseInputStream> stream(
+        HttpClientResponse response,
+        long maxLength,
+        int bufferSize,
+        Vertx vertx,
+        long idleTimeout
+    ) {
+        final ContentDecoder decoder;
+        try {
+            decoder = ContentDecoder.of(response, maxLength);
+        } catch (FetcherException e) {
+            response.request().reset();
+            return Future.failedFuture(e);
+        }
+        if (maxLength > 0 && announcedLength(response) > maxLength) {
+            response.request().reset();
+            return Future.failedFuture(tooLarge(maxLength));
+        }
+        return Future.succeededFuture(ResponseInputStream.attach(response, decoder, maxLength, bufferSize, vertx, idleTimeout));
+    }
+
+    static FetcherException tooLarge(long maxLength) {
+        return new ContentTooLargeException(maxLength);
+    }
+
+    /** Signals a compressed body that is corrupted, or expands past the limit within a single chunk. */
+    static FetcherException decodingFailure(RuntimeException cause) {
+        return new FetcherException("Unable to decode Bitbucket content (" + cause.getMessage() + ")", cause);
+    }
+
+    /** Returns the {@code Content-Length} announced by the response, {@code -1} when unknown. */
+    static long announcedLength(HttpClientResponse response) {
+        final String contentLength = response.getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Signals a body larger than the maximum content length. */
+    static final class ContentTooLargeException extends FetcherException {
+
+        private ContentTooLargeException(long maxLength) {
+            super("Bitbucket content exceeds the maximum allowed size of " + maxLength + " bytes", null);
+        }
+    }
+}
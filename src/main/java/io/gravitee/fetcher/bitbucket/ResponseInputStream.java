@@ -0,0 +1,303 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Blocking {@link InputStream} over the body of an {@link HttpClientResponse}, read as it is received.
+ * <p>
+ * At most {@code bufferSize} bytes are queued: the response is paused when the reader falls behind and resumed once half of
+ * the queue has been consumed. Reads block the calling thread, so the stream must never be read from a Vert.x event loop.
+ * A compressed body is decoded on the event loop as it is received, the queue holding decoded bytes.
+ * <p>
+ * A stream that is neither read nor closed for {@code idleTimeout} while its response is still being received is
+ * abandoned: the request is reset and the stream fails, which releases the connection and the HTTP client it holds.
+ *
+ * @author GraviteeSource Team
+ */
+final class ResponseInputStream extends InputStream {
+
+    private final HttpClientResponse response;
+    private final ContentDecoder decoder;
+    private final long maxLength;
+    private final int bufferSize;
+    private final Vertx vertx;
+    private final long idleTimeout;
+    private final Promise<Void> completion = Promise.promise();
+
+    /** Guarded by {@code this}. */
+    private final Deque<Buffer> chunks = new ArrayDeque<>();
+    private Buffer current;
+    private int position;
+    private long queued;
+    private long received;
+    private boolean paused;
+    private boolean ended;
+    private boolean closed;
+    private Throwable failure;
+    /** Time of the last read, or of the creation of the stream. */
+    private long readAt = System.currentTimeMillis();
+    /** Whether a reader is waiting for the body, a stream being read is never idle. */
+    private boolean waiting;
+
+    private ResponseInputStream(
+        HttpClientResponse response,
+        ContentDecoder decoder,
+        long maxLength,
+        int bufferSize,
+        Vertx vertx,
+        long idleTimeout
+    ) {
+        this.response = response;
+        this.decoder = decoder;
+        this.maxLength = maxLength;
+        this.bufferSize = bufferSize;
+        this.vertx = vertx;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Starts reading the body of the response into a new stream. Must be called from the response callback, before the
+     * response ends.
+     *
+     * @param decoder decoder of the body, {@code null} when it is not encoded
+     * @param maxLength maximum number of (decoded) bytes accepted before the response is aborted, {@code 0} for no limit
+     * @param bufferSize number of bytes queued before the response is paused
+     * @param idleTimeout time in milliseconds after which a stream nobody reads is abandoned, {@code 0} for no limit
+     */
+    static ResponseInputStream attach(
+        HttpClientResponse response,
+        ContentDecoder decoder,
+        long maxLength,
+        int bufferSize,
+        Vertx vertx,
+        long idleTimeout
+    ) {
+        final ResponseInputStream stream = new ResponseInputStream(response, decoder, maxLength, bufferSize, vertx, idleTimeout);
+        response.exceptionHandler(stream::onFailure);
+        response.endHandler(v -> stream.onEnd());
+        response.handler(stream::onChunk);
+        if (idleTimeout > 0) {
+            vertx.setTimer(idleTimeout, timerId -> stream.checkIdle());
+        }
+        return stream;
+    }
+
+    /**
+     * Completes once the body has been fully received, the response failed or the stream has been closed.
+     */
+    Future<Void> completion() {
+        return completion.future();
+    }
+
+    /** Number of body bytes received so far, once decoded. */
+    synchronized long received() {
+        return received;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        final int read;
+        final boolean resume;
+        synchronized (this) {
+            while (current == null || position == current.length()) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                current = chunks.poll();
+                position = 0;
+                if (current != null) {
+                    queued -= current.length();
+                } else if (failure != null) {
+                    throw new IOException(failure.getMessage(), failure);
+                } else if (ended) {
+                    return -1;
+                } else {
+                    waiting = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while reading Bitbucket response", e);
+                    } finally {
+                        waiting = false;
+                    }
+                }
+            }
+            readAt = System.currentTimeMillis();
+            read = Math.min(len, current.length() - position);
+            current.getBytes(position, position + read, b, off);
+            position += read;
+            resume = paused && queued <= bufferSize / 2;
+            if (resume) {
+                paused = false;
+            }
+        }
+        if (resume) {
+            response.resume();
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, queued + (current == null ? 0 : current.length() - position));
+    }
+
+    @Override
+    public void close() {
+        final boolean abort;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            abort = !ended && failure == null;
+            chunks.clear();
+            current = null;
+            notifyAll();
+        }
+        if (abort) {
+            response.request().reset();
+        }
+        completion.tryComplete();
+    }
+
+    /** Abandons the stream if it has not been read for {@code idleTimeout}, otherwise checks again once it could be. */
+    private void checkIdle() {
+        final long idle;
+        synchronized (this) {
+            if (closed || ended || failure != null) {
+                return;
+            }
+            idle = waiting ? 0 : System.currentTimeMillis() - readAt;
+            if (idle >= idleTimeout) {
+                failure = new TimeoutException("Bitbucket response not read for " + idleTimeout + " ms, abandoned");
+                chunks.clear();
+                current = null;
+                queued = 0;
+                notifyAll();
+            }
+        }
+        if (idle < idleTimeout) {
+            vertx.setTimer(idleTimeout - idle, timerId -> checkIdle());
+            return;
+        }
+        response.request().reset();
+        if (decoder != null) {
+            decoder.close();
+        }
+        completion.tryFail(failure);
+    }
+
+    private void onChunk(Buffer raw) {
+        final Buffer chunk;
+        synchronized (this) {
+            if (closed || failure != null) {
+                return;
+            }
+        }
+        try {
+            chunk = decoder == null ? raw : decoder.decode(raw);
+        } catch (RuntimeException e) {
+            response.request().reset();
+            onFailure(ResponseBodies.decodingFailure(e));
+            return;
+        }
+        enqueue(chunk);
+    }
+
+    private void enqueue(Buffer chunk) {
+        final boolean pause;
+        final boolean tooLarge;
+        synchronized (this) {
+            if (closed || failure != null) {
+                return;
+            }
+            received += chunk.length();
+            tooLarge = maxLength > 0 && received > maxLength;
+            if (tooLarge) {
+                failure = ResponseBodies.tooLarge(maxLength);
+                chunks.clear();
+            } else {
+                chunks.add(chunk);
+                queued += chunk.length();
+            }
+            pause = !tooLarge && !paused && queued >= bufferSize;
+            if (pause) {
+                paused = true;
+            }
+            notifyAll();
+        }
+        if (tooLarge) {
+            response.request().reset();
+            if (decoder != null) {
+                decoder.close();
+            }
+            completion.tryFail(failure);
+        } else if (pause) {
+            response.pause();
+        }
+    }
+
+    private void onEnd() {
+        if (decoder != null) {
+            try {
+                enqueue(decoder.finish());
+            } catch (RuntimeException e) {
+                onFailure(ResponseBodies.decodingFailure(e));
+                return;
+            }
+        }
+        synchronized (this) {
+            ended = true;
+            notifyAll();
+        }
+        completion.tryComplete();
+    }
+
+    private void onFailure(Throwable throwable) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = throwable;
+            }
+            notifyAll();
+        }
+        if (decoder != null) {
+            decoder.close();
+        }
+        completion.tryFail(throwable);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import java.io.IOException;
+
+/**
+ * Content cache tier shared by the nodes of a cluster, so that a file scheduled on every node is only downloaded from
+ * Bitbucket by one of them per refresh interval.
+ * <p>
+ * Implementations may block: they are only called from worker threads.
+ *
+ * @author GraviteeSource Team
+ */
+interface SharedContentStore {
+    /** Returns the content stored for the key, {@code null} if there is none. */
+    CachedContent read(String key) throws IOException;
+
+    /** Stores the content for the key, replacing the previous one atomically. */
+    void write(String key, CachedContent content) throws IOException;
+
+    /**
+     * Tries to take the lease on refreshing the key for {@code duration} milliseconds. Only the node holding the lease is
+     * expected to request the content from Bitbucket, the others read what it stores.
+     *
+     * @return {@code true} if the lease has been taken, {@code false} if another node holds it
+     */
+    boolean tryLease(String key, long duration) throws IOException;
+
+    /** Gives up a lease before it expires, typically because the refresh failed. */
+    void releaseLease(String key) throws IOException;
+}
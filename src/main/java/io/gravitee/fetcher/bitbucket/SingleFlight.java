@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.fetcher.bitbucket;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent asynchronous loads of the same key: callers arriving while a load is in flight get its future
+ * instead of starting another one. The key is forgotten as soon as the load completes, so results are never reused.
+ *
+ * @param <T> type of the loaded values
+ * @author GraviteeSource Team
+ */
+final class SingleFlight<T> {
+
+    private final Map<String, Future<T>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Runs {@code loader} unless a load of the same key is already in flight, in which case its future is returned instead.
+     */
+    Future<T> run(String key, Supplier<Future<T>> loader) {
+        final Promise<T> promise = Promise.promise();
+        final Future<T> pending = inFlight.putIfAbsent(key, promise.future());
+        if (pending != null) {
+            return pending;
+        }
+
+        Future<T> load;
+        try {
+            load = loader.get();
+        } catch (RuntimeException e) {
+            load = Future.failedFuture(e);
+        }
+        load.onComplete(ar -> {
+            inFlight.remove(key, promise.future());
+            promise.handle(ar);
+        });
+        return promise.future();
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+}
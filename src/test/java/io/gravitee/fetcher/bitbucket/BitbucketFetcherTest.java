@@ -16,26 +16,71 @@
 package io.gravitee.fetcher.bitbucket;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.http.Fault;
 import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import io.gravitee.fetcher.api.Fetcher;
 import io.gravitee.fetcher.api.FetcherException;
+import io.gravitee.fetcher.api.Resource;
 import io.gravitee.fetcher.api.ResourceNotFoundException;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.compression.Brotli;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.OpenSSLEngineOptions;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.test.util.ReflectionTestUtils;
 
 /**
@@ -62,6 +107,18 @@ class BitbucketFetcherTest {
 
     @AfterEach
     void tearDown() throws Exception {
+        BitbucketContentCache.shared().clear();
+        BitbucketCommitResolver.shared().clear();
+        BitbucketRateLimiter.shared().clear();
+        BitbucketChangeTracker.shared().clear();
+        BitbucketCircuitBreaker.shared().clear();
+        BitbucketRefreshPlanner.shared().clear();
+        BitbucketDnsCache.shared().clear();
+        BitbucketHedging.shared().clear();
+        BitbucketPushHandler.clear();
+        RequestPlan.clear();
+        FileContentStore.clear();
+        BitbucketHttpClientRegistry.closeAll();
         testVertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
     }
 
@@ -326,6 +383,1142 @@ class BitbucketFetcherTest {
             .hasNoCause();
     }
 
+    @Test
+    void should_share_one_pooled_http_client_between_fetchers_of_the_same_host() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!")
+            )
+        );
+
+        bitbucketFetcher(10_000).fetch();
+        bitbucketFetcher(10_000).fetch();
+
+        assertThat(BitbucketHttpClientRegistry.size(testVertx)).isEqualTo(1);
+
+        BitbucketFetcher resizedPool = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(resizedPool, "poolMaxSize", 20);
+        resizedPool.fetch();
+
+        assertThat(BitbucketHttpClientRegistry.size(testVertx)).isEqualTo(2);
+
+        testVertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(BitbucketHttpClientRegistry.size(testVertx)).isZero();
+    }
+
+    @Test
+    void should_serve_cached_content_when_bitbucket_responds_not_modified() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody("Gravitee.io is awesome!")
+            )
+        );
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse().withStatus(304))
+        );
+
+        bitbucketFetcher(10_000).fetch();
+        InputStream content = bitbucketFetcher(10_000).fetch().getContent();
+
+        assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("Gravitee.io is awesome!");
+        wiremock.verify(
+            1,
+            getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).withHeader(
+                "If-None-Match",
+                equalTo("\"v1\"")
+            )
+        );
+    }
+
+    @Test
+    void should_serve_fresh_cached_content_without_calling_bitbucket() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!")
+            )
+        );
+
+        cachingFetcher().fetch();
+        InputStream content = cachingFetcher().fetch().getContent();
+
+        assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("Gravitee.io is awesome!");
+        wiremock.verify(1, getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")));
+    }
+
+    @Test
+    void should_not_serve_cached_content_fetched_with_other_credentials() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!")
+            )
+        );
+
+        cachingFetcher().fetch();
+        BitbucketFetcher otherCredentials = cachingFetcher();
+        ((BitbucketFetcherConfiguration) otherCredentials.getConfiguration()).setLogin("john.doe@example.com");
+        ((BitbucketFetcherConfiguration) otherCredentials.getConfiguration()).setPassword("my-api-token");
+        otherCredentials.fetch();
+
+        wiremock.verify(2, getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")));
+    }
+
+    @Test
+    void should_fetch_content_at_the_commit_the_ref_points_to_when_ref_resolution_is_enabled() throws Exception {
+        String commit = "0123456789abcdef0123456789abcdef01234567";
+        wiremock.stubFor(
+            get(urlPathEqualTo("/2.0/repositories/MyUserName/MyRepo/refs"))
+                .withQueryParam("q", equalTo("name=\"MyBranch\""))
+                .willReturn(okJson("{\"values\":[{\"target\":{\"hash\":\"" + commit + "\"}}]}"))
+        );
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/" + commit + "/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!")
+            )
+        );
+
+        resolvingFetcher().fetch();
+        InputStream content = resolvingFetcher().fetch().getContent();
+
+        assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("Gravitee.io is awesome!");
+        wiremock.verify(1, getRequestedFor(urlPathEqualTo("/2.0/repositories/MyUserName/MyRepo/refs")));
+        wiremock.verify(1, getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/" + commit + "/path/to/file")));
+    }
+
+    @Test
+    void should_fetch_content_asynchronously() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!")
+            )
+        );
+
+        Resource resource = bitbucketFetcher(10_000).fetchAsync().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(new String(resource.getContent().readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("Gravitee.io is awesome!");
+        assertThat(resource.getMetadata()).containsEntry(Fetcher.PROVIDER_NAME_PROPERTY_KEY, "Bitbucket");
+    }
+
+    @Test
+    void should_complete_asynchronous_fetch_exceptionally_when_file_is_not_found() {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(aResponse().withStatus(404))
+        );
+
+        assertThat(bitbucketFetcher(10_000).fetchAsync())
+            .failsWithin(10, TimeUnit.SECONDS)
+            .withThrowableOfType(ExecutionException.class)
+            .withCauseInstanceOf(ResourceNotFoundException.class);
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    void should_stream_content_when_streaming_is_enabled() throws Exception {
+        String content = "Gravitee.io is awesome!".repeat(10_000);
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody(content)
+            )
+        );
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingBufferSize", 1024);
+
+        try (InputStream stream = bitbucketFetcher.fetch().getContent()) {
+            assertThat(new String(stream.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void should_abandon_a_streamed_content_nobody_reads() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!".repeat(10_000))
+            )
+        );
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingBufferSize", 1024);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingIdleTimeout", 200L);
+
+        InputStream stream = bitbucketFetcher.fetch().getContent();
+
+        assertThat(stream).isInstanceOf(ResponseInputStream.class);
+        CompletableFuture<Void> completion = ((ResponseInputStream) stream).completion().toCompletionStage().toCompletableFuture();
+        assertThatThrownBy(() -> completion.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(TimeoutException.class);
+        assertThatThrownBy(stream::read).isInstanceOf(IOException.class).hasMessageContaining("not read");
+    }
+
+    @Test
+    void should_let_dependent_stages_read_streamed_content() throws Exception {
+        String content = "Gravitee.io is awesome!".repeat(10_000);
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody(content)
+            )
+        );
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingBufferSize", 1024);
+
+        String read = bitbucketFetcher
+            .fetchAsync()
+            .thenApply(resource -> {
+                assertThat(Context.isOnEventLoopThread()).isFalse();
+                try (InputStream stream = resource.getContent()) {
+                    return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })
+            .toCompletableFuture()
+            .get(10, TimeUnit.SECONDS);
+
+        assertThat(read).isEqualTo(content);
+    }
+
+    @Test
+    void should_abort_fetch_when_content_exceeds_max_content_length() {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("Gravitee.io is awesome!")
+            )
+        );
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "maxContentLength", 10L);
+
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class).hasMessageContaining("maximum allowed size");
+    }
+
+    @Test
+    void should_retry_after_the_delay_requested_by_bitbucket_when_throttled() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file"))
+                .inScenario("throttling")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(429).withHeader("Retry-After", "1"))
+                .willSetStateTo("throttled")
+        );
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file"))
+                .inScenario("throttling")
+                .whenScenarioStateIs("throttled")
+                .willReturn(aResponse().withStatus(200).withBody("Gravitee.io is awesome!"))
+        );
+
+        InputStream content = bitbucketFetcher(10_000).fetch().getContent();
+
+        assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("Gravitee.io is awesome!");
+        wiremock.verify(2, getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")));
+    }
+
+    @Test
+    void should_fail_without_retrying_when_requested_delay_exceeds_the_timeout() {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(429).withHeader("Retry-After", "60")
+            )
+        );
+
+        assertThatThrownBy(bitbucketFetcher(10_000)::fetch)
+            .isInstanceOf(FetcherException.class)
+            .hasMessageContaining("Status code: 429")
+            .hasMessageContaining("rate limit exceeded");
+        wiremock.verify(1, getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")));
+    }
+
+    @Test
+    void should_delay_requests_above_the_configured_rate() throws Exception {
+        wiremock.stubFor(
+            get(urlMatching("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/file-.*")).willReturn(
+                aResponse().withStatus(200).withBody("content")
+            )
+        );
+
+        List<CompletableFuture<Resource>> fetches = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setFilepath("file-" + i);
+            // 10 requests per second, a single one sent right away
+            ReflectionTestUtils.setField(bitbucketFetcher, "rateLimitRequestsPerHour", 36_000);
+            ReflectionTestUtils.setField(bitbucketFetcher, "rateLimitBurst", 1);
+            fetches.add(bitbucketFetcher.fetchAsync().toCompletableFuture());
+        }
+        for (CompletableFuture<Resource> fetch : fetches) {
+            fetch.get(10, TimeUnit.SECONDS);
+        }
+
+        List<Long> sentAt = wiremock
+            .getAllServeEvents()
+            .stream()
+            .map(event -> event.getRequest().getLoggedDate().getTime())
+            .sorted()
+            .toList();
+        assertThat(sentAt).hasSize(4);
+        // One request every 100 ms after the first, with some leeway for the first one being sent late
+        assertThat(sentAt.get(3) - sentAt.get(0)).isGreaterThanOrEqualTo(250);
+    }
+
+    @Test
+    void should_list_matching_files_of_a_directory_following_pagination() throws Exception {
+        String src = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/";
+        wiremock.stubFor(
+            get(urlEqualTo(src + "docs/?pagelen=100")).willReturn(
+                okJson(
+                    "{\"values\":[{\"type\":\"commit_file\",\"path\":\"docs/README.md\"}," +
+                    "{\"type\":\"commit_directory\",\"path\":\"docs/api\"}]," +
+                    "\"next\":\"http://localhost:" +
+                    wiremock.getPort() +
+                    src +
+                    "docs/?pagelen=100&page=2\"}"
+                )
+            )
+        );
+        wiremock.stubFor(
+            get(urlEqualTo(src + "docs/?pagelen=100&page=2")).willReturn(
+                okJson("{\"values\":[{\"type\":\"commit_file\",\"path\":\"docs/logo.png\"}]}")
+            )
+        );
+        wiremock.stubFor(
+            get(urlEqualTo(src + "docs/api/?pagelen=100")).willReturn(
+                okJson("{\"values\":[{\"type\":\"commit_file\",\"path\":\"docs/api/openapi.yaml\"}]}")
+            )
+        );
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        BitbucketFetcherConfiguration config = (BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration();
+        config.setFilepath("/docs/");
+        config.setIncludes(List.of("*.md", "**/*.yaml"));
+
+        assertThat(bitbucketFetcher.files()).containsExactly("docs/README.md", "docs/api/openapi.yaml");
+    }
+
+    @Test
+    void should_select_files_at_the_root_of_the_directory_with_a_leading_double_star() {
+        FileSelector selector = new FileSelector("docs", List.of("**/*.md"), List.of("**/draft-*"));
+
+        assertThat(selector.matches("docs/README.md")).isTrue();
+        assertThat(selector.matches("docs/api/guide.md")).isTrue();
+        assertThat(selector.matches("docs/draft-notes.md")).isFalse();
+        assertThat(selector.matches("docs/api/draft-notes.md")).isFalse();
+        assertThat(selector.matches("docs/logo.png")).isFalse();
+        assertThat(selector.matches("README.md")).isFalse();
+    }
+
+    @Test
+    void should_fetch_all_files_of_a_directory() throws Exception {
+        String src = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/";
+        wiremock.stubFor(
+            get(urlEqualTo(src + "docs/?pagelen=100")).willReturn(
+                okJson(
+                    "{\"values\":[{\"type\":\"commit_file\",\"path\":\"docs/a.md\"},{\"type\":\"commit_file\",\"path\":\"docs/b.md\"}]}"
+                )
+            )
+        );
+        wiremock.stubFor(get(urlEqualTo(src + "docs/a.md")).willReturn(aResponse().withStatus(200).withBody("A")));
+        wiremock.stubFor(get(urlEqualTo(src + "docs/b.md")).willReturn(aResponse().withStatus(200).withBody("B")));
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setFilepath("docs");
+
+        Map<String, Resource> resources = bitbucketFetcher.fetchFiles().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(resources).containsOnlyKeys("docs/a.md", "docs/b.md");
+        assertThat(resources.get("docs/b.md").getContent().readAllBytes()).isEqualTo("B".getBytes(StandardCharsets.UTF_8));
+        assertThat(resources.get("docs/b.md").getMetadata())
+            .extractingByKey(Fetcher.EDIT_URL_PROPERTY_KEY)
+            .asString()
+            .contains("/src/MyBranch/docs/b.md");
+    }
+
+    @Test
+    void should_fetch_matching_files_of_a_directory_from_the_repository_archive() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            for (String entry : List.of("docs/a.md", "docs/logo.png", "README.md")) {
+                zip.putNextEntry(new ZipEntry("MyUserName-MyRepo-0123456789ab/" + entry));
+                zip.write(entry.getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        wiremock.stubFor(
+            get(urlEqualTo("/MyUserName/MyRepo/get/MyBranch.zip")).willReturn(aResponse().withStatus(200).withBody(archive.toByteArray()))
+        );
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "archiveEnabled", true);
+        BitbucketFetcherConfiguration config = (BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration();
+        config.setFilepath("docs");
+        config.setIncludes(List.of("*.md"));
+
+        Map<String, Resource> resources = bitbucketFetcher.fetchFiles().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(resources).containsOnlyKeys("docs/a.md");
+        assertThat(resources.get("docs/a.md").getContent().readAllBytes()).isEqualTo("docs/a.md".getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(1, getRequestedFor(anyUrl()));
+    }
+
+    @Test
+    void should_record_request_metrics() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            wiremock.stubFor(
+                get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                    aResponse().withStatus(200).withBody("content")
+                )
+            );
+            wiremock.stubFor(
+                get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/secret")).willReturn(aResponse().withStatus(401))
+            );
+
+            bitbucketFetcher(10_000).fetch();
+            BitbucketFetcher unauthorized = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) unauthorized.getConfiguration()).setFilepath("path/to/secret");
+            assertThatThrownBy(unauthorized::fetch).isInstanceOf(FetcherException.class);
+
+            assertThat(
+                registry.get(BitbucketMetrics.REQUEST).tags("repository", "MyRepo", "status", "2xx", "error", "none").timer().count()
+            ).isEqualTo(1);
+            assertThat(registry.get(BitbucketMetrics.RESPONSE_SIZE).tags("workspace", "MyUserName").summary().totalAmount()).isEqualTo(7);
+            assertThat(registry.get(BitbucketMetrics.ERRORS).tags("error", "unauthorized").counter().count()).isEqualTo(1);
+            assertThat(registry.get(BitbucketMetrics.FETCH).tags("error", "none").timer().count()).isEqualTo(1);
+            assertThat(registry.get(BitbucketMetrics.FETCH).timer().getId().getTag("status")).isNull();
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    @Test
+    void should_fail_with_clear_message_and_record_it_when_username_is_missing() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setUsername(null);
+
+            assertThatThrownBy(bitbucketFetcher::fetch)
+                .isInstanceOf(FetcherException.class)
+                .hasMessageContaining("Some required configuration attributes are missing");
+            assertThat(registry.get(BitbucketMetrics.FETCH).tags("workspace", "other", "repository", "other").timer().count()).isEqualTo(1);
+            assertThat(registry.find(BitbucketMetrics.FETCH).tags("workspace", "null").timer()).isNull();
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    @Test
+    void should_report_content_cache_meters() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        BitbucketContentCache cache = new BitbucketContentCache(1, 1024);
+        new BitbucketMetrics(registry).bind(cache);
+
+        cache.put("first", "", new CachedContent("v1".getBytes(StandardCharsets.UTF_8), null, null, System.currentTimeMillis()));
+        cache.put("second", "", new CachedContent("v2".getBytes(StandardCharsets.UTF_8), null, null, System.currentTimeMillis()));
+        cache.getFresh("second", "", 60_000);
+        cache.getFresh("first", "", 60_000);
+        // Internal lookups, e.g. of the last known content, are not fetches served or missed by the cache
+        cache.peek("second", "");
+        cache.peek("first", "");
+
+        assertThat(registry.get(BitbucketMetrics.CACHE_HITS).functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get(BitbucketMetrics.CACHE_MISSES).functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get(BitbucketMetrics.CACHE_EVICTIONS).functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get(BitbucketMetrics.CACHE_ENTRIES).gauge().value()).isEqualTo(1);
+        assertThat(registry.get(BitbucketMetrics.CACHE_SIZE).gauge().value()).isEqualTo(2);
+    }
+
+    @Test
+    void should_apply_the_content_cache_limits_once() {
+        BitbucketContentCache cache = BitbucketContentCache.shared(1, 1024);
+        assertThat(BitbucketContentCache.shared(1000, 1024)).isSameAs(cache);
+
+        cache.put("first", "", new CachedContent("v1".getBytes(StandardCharsets.UTF_8), null, null, System.currentTimeMillis()));
+        cache.put("second", "", new CachedContent("v2".getBytes(StandardCharsets.UTF_8), null, null, System.currentTimeMillis()));
+
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void should_poll_at_the_shortest_interval_of_an_irregular_cron() {
+        RequestPlan.Key weekDays = new RequestPlan.Key(null, null, null, null, null, "", true, "0 0 9 * * MON-FRI");
+        RequestPlan.Key twiceHourly = new RequestPlan.Key(null, null, null, null, null, "", true, "0 0,10 * * * *");
+
+        assertThat((Long) ReflectionTestUtils.invokeMethod(BitbucketFetcher.class, "cronInterval", weekDays)).isEqualTo(86_400_000);
+        assertThat((Long) ReflectionTestUtils.invokeMethod(BitbucketFetcher.class, "cronInterval", twiceHourly)).isEqualTo(600_000);
+    }
+
+    @Test
+    void should_not_keep_cached_content_until_a_push_to_the_repository_is_received() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v1")));
+
+        pushFetcher().fetch();
+        pushFetcher().fetch();
+        wiremock.verify(2, getRequestedFor(urlEqualTo(url)));
+
+        // Pushes to the repository are now known to be relayed
+        push("OtherBranch");
+        pushFetcher().fetch();
+        pushFetcher().fetch();
+        wiremock.verify(3, getRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    void should_serve_cached_content_until_the_ref_is_pushed_to() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v1")));
+        push("OtherBranch");
+
+        assertThat(pushFetcher().fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v2")));
+        assertThat(pushFetcher().fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(1, getRequestedFor(urlEqualTo(url)));
+
+        JsonObject target = new JsonObject().put("hash", "0123456789abcdef0123456789abcdef01234567");
+        JsonObject pushed = new JsonObject().put("type", "branch").put("name", "MyBranch").put("target", target);
+        JsonObject payload = new JsonObject()
+            .put("repository", new JsonObject().put("full_name", "myusername/myrepo"))
+            .put("push", new JsonObject().put("changes", new JsonArray().add(new JsonObject().put("new", pushed))));
+        Object changes = testVertx
+            .eventBus()
+            .request(BitbucketPushHandler.ADDRESS, payload.encode())
+            .toCompletionStage()
+            .toCompletableFuture()
+            .get(10, TimeUnit.SECONDS)
+            .body();
+
+        assertThat(changes).isEqualTo(1);
+        assertThat(pushFetcher().fetch().getContent().readAllBytes()).isEqualTo("v2".getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(2, getRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    void should_invalidate_the_refs_pushed_to_another_node() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v1")));
+        assertThat(pushFetcher().fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v2")));
+
+        CompletableFuture<Object> changed = new CompletableFuture<>();
+        testVertx.eventBus().consumer(BitbucketPushHandler.CHANGED_ADDRESS, message -> changed.complete(message.body()));
+        BitbucketPushHandler.Change change = new BitbucketPushHandler.Change("myusername/myrepo", "MyBranch", null);
+        testVertx.eventBus().publish(BitbucketPushHandler.INVALIDATE_ADDRESS, change.toJson());
+
+        assertThat(changed.get(10, TimeUnit.SECONDS)).isEqualTo(change.toJson());
+        assertThat(pushFetcher().fetch().getContent().readAllBytes()).isEqualTo("v2".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void should_only_invalidate_the_pushed_ref() {
+        BitbucketPushHandler.Change change = new BitbucketPushHandler.Change("ws/repo", "main", null);
+        String api = "https://api.bitbucket.org/2.0/repositories/";
+
+        assertThat(BitbucketPushHandler.isContent(api + "WS/Repo/src/main/docs/index.md", change)).isTrue();
+        assertThat(BitbucketPushHandler.isContent(api + "ws/repo/src/main-old/docs/index.md", change)).isFalse();
+        assertThat(BitbucketPushHandler.isContent(api + "ws/repo-old/src/main/docs/index.md", change)).isFalse();
+        assertThat(BitbucketPushHandler.isContent(api + "ws/repo/src/other/repositories/ws/repo/src/main/x.md", change)).isFalse();
+        assertThat(BitbucketPushHandler.isResolution(api + "ws/repo@main#fingerprint", change)).isTrue();
+        assertThat(BitbucketPushHandler.isResolution(api + "ws/repo@main-old#fingerprint", change)).isFalse();
+        assertThat(BitbucketPushHandler.isResolution(api + "ws/repo@Main#fingerprint", change)).isFalse();
+    }
+
+    @Test
+    void should_share_fetched_content_with_the_other_nodes(@TempDir Path sharedCache) throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody("v1")));
+
+        BitbucketFetcher firstNode = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(firstNode, "sharedCacheDirectory", sharedCache.toString());
+        assertThat(firstNode.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+
+        // The second node starts with an empty memory cache
+        BitbucketContentCache.shared().clear();
+        BitbucketFetcher secondNode = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(secondNode, "sharedCacheDirectory", sharedCache.toString());
+        assertThat(secondNode.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+
+        wiremock.verify(1, getRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    void should_bound_the_shared_cache_directory(@TempDir Path sharedCache) throws Exception {
+        String src = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/";
+        wiremock.stubFor(get(urlEqualTo(src + "first")).willReturn(aResponse().withStatus(200).withBody("a".repeat(1000))));
+        wiremock.stubFor(get(urlEqualTo(src + "second")).willReturn(aResponse().withStatus(200).withBody("b".repeat(1000))));
+
+        for (String filepath : List.of("first", "second")) {
+            BitbucketFetcher fetcher = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) fetcher.getConfiguration()).setFilepath(filepath);
+            ReflectionTestUtils.setField(fetcher, "sharedCacheDirectory", sharedCache.toString());
+            ReflectionTestUtils.setField(fetcher, "sharedCacheMaxSize", 1500L);
+            fetcher.fetch();
+        }
+
+        try (Stream<Path> files = Files.list(sharedCache)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".entry"))).hasSize(1);
+        }
+    }
+
+    @Test
+    void should_revalidate_the_content_kept_on_disk_after_a_restart(@TempDir Path diskCache) throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody("v1")));
+        wiremock.stubFor(
+            get(urlEqualTo(url)).withHeader("If-None-Match", equalTo("\"v1\"")).willReturn(aResponse().withStatus(304)).atPriority(1)
+        );
+
+        BitbucketFetcher beforeRestart = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(beforeRestart, "diskCacheDirectory", diskCache.toString());
+        assertThat(beforeRestart.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+
+        BitbucketContentCache.shared().clear();
+        BitbucketFetcher afterRestart = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(afterRestart, "diskCacheDirectory", diskCache.toString());
+        assertThat(afterRestart.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+
+        // Served right away, then revalidated in the background
+        await().untilAsserted(() -> wiremock.verify(1, getRequestedFor(urlEqualTo(url)).withHeader("If-None-Match", equalTo("\"v1\""))));
+    }
+
+    @Test
+    void should_serve_the_content_kept_on_disk_when_bitbucket_cannot_be_reached(@TempDir Path diskCache) throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody("v1")));
+
+        BitbucketFetcher fetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(fetcher, "diskCacheDirectory", diskCache.toString());
+        assertThat(fetcher.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+        assertThat(fetcher.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void should_not_serve_the_content_kept_on_disk_once_its_ref_is_pushed_to(@TempDir Path diskCache) throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v1")));
+        BitbucketFetcher fetcher = pushFetcher();
+        ReflectionTestUtils.setField(fetcher, "diskCacheDirectory", diskCache.toString());
+        assertThat(fetcher.fetch().getContent().readAllBytes()).isEqualTo("v1".getBytes(StandardCharsets.UTF_8));
+
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("v2")));
+        // Pushed after the content was fetched, not within the same millisecond
+        long fetchedAt = System.currentTimeMillis();
+        await().pollInterval(Duration.ofMillis(1)).until(() -> System.currentTimeMillis() > fetchedAt);
+        JsonObject pushed = new JsonObject().put("type", "branch").put("name", "MyBranch");
+        BitbucketPushHandler.handle(
+            new JsonObject()
+                .put("repository", new JsonObject().put("full_name", "myusername/myrepo"))
+                .put("push", new JsonObject().put("changes", new JsonArray().add(new JsonObject().put("new", pushed))))
+        );
+
+        assertThat(fetcher.fetch().getContent().readAllBytes()).isEqualTo("v2".getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(2, getRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    void should_trust_the_certificates_of_the_configured_trust_store(@TempDir Path directory) throws Exception {
+        WireMockServer https = new WireMockServer(wireMockConfig().dynamicPort().dynamicHttpsPort());
+        https.start();
+        try {
+            https.stubFor(
+                get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                    aResponse().withStatus(200).withBody("content")
+                )
+            );
+            Path truststore = directory.resolve("bitbucket.pem");
+            Files.writeString(truststore, serverCertificate(https.httpsPort()));
+            String bitbucketUrl = "https://localhost:" + https.httpsPort() + "/2.0";
+            BitbucketFetcher untrusted = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) untrusted.getConfiguration()).setBitbucketUrl(bitbucketUrl);
+            BitbucketFetcher trusted = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) trusted.getConfiguration()).setBitbucketUrl(bitbucketUrl);
+            ReflectionTestUtils.setField(trusted, "sslTruststoreType", "pem");
+            ReflectionTestUtils.setField(trusted, "sslTruststorePath", truststore.toString());
+
+            // Self-signed, unknown to the trust store of the JVM
+            assertThatThrownBy(untrusted::fetch).isInstanceOf(FetcherException.class);
+            assertThat(trusted.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            https.stop();
+        }
+    }
+
+    @Test
+    void should_fall_back_to_the_jdk_tls_engine_when_openssl_is_missing() throws Exception {
+        assumeFalse(OpenSSLEngineOptions.isAvailable(), "netty-tcnative is on the test classpath");
+        WireMockServer https = new WireMockServer(wireMockConfig().dynamicPort().dynamicHttpsPort());
+        https.start();
+        try {
+            https.stubFor(
+                get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                    aResponse().withStatus(200).withBody("content")
+                )
+            );
+            AtomicBoolean warned = (AtomicBoolean) ReflectionTestUtils.getField(BitbucketFetcher.class, "OPENSSL_UNAVAILABLE_LOGGED");
+            warned.set(false);
+            BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+            ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setBitbucketUrl(
+                "https://localhost:" + https.httpsPort() + "/2.0"
+            );
+            ReflectionTestUtils.setField(bitbucketFetcher, "sslTrustAll", true);
+            ReflectionTestUtils.setField(bitbucketFetcher, "sslOpenSsl", true);
+
+            assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+            assertThat(warned).isTrue();
+
+            // The warning is only logged by the first client created without OpenSSL
+            HttpClientOptions options = new HttpClientOptions();
+            BitbucketHttpClientRegistry.Settings settings = new BitbucketHttpClientRegistry.Settings(
+                10, 60_000, 10_000, false, 1, 100, true, "PEM", null, null, true
+            );
+            ReflectionTestUtils.invokeMethod(BitbucketFetcher.class, "configureSsl", options, settings);
+            assertThat(options.getSslEngineOptions()).isNotInstanceOf(OpenSSLEngineOptions.class);
+            assertThat(warned).isTrue();
+        } finally {
+            https.stop();
+        }
+    }
+
+    /** Returns the certificate the HTTPS server on the port presents, in PEM format. */
+    private static String serverCertificate(int port) throws Exception {
+        X509Certificate[] presented = new X509Certificate[1];
+        TrustManager capture = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                presented[0] = chain[0];
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { capture }, null);
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+            socket.startHandshake();
+        }
+        String encoded = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(presented[0].getEncoded());
+        return "-----BEGIN CERTIFICATE-----\n" + encoded + "\n-----END CERTIFICATE-----\n";
+    }
+
+    @Test
+    void should_fetch_over_http2() throws Exception {
+        WireMockServer https = new WireMockServer(wireMockConfig().dynamicPort().dynamicHttpsPort());
+        https.start();
+        try {
+            https.stubFor(
+                get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                    aResponse().withStatus(200).withBody("content")
+                )
+            );
+            BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+            ReflectionTestUtils.setField(bitbucketFetcher, "http2Enabled", true);
+            ReflectionTestUtils.setField(bitbucketFetcher, "sslTrustAll", true);
+            ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setBitbucketUrl(
+                "https://localhost:" + https.httpsPort() + "/2.0"
+            );
+
+            List<CompletableFuture<Resource>> fetches = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                fetches.add(bitbucketFetcher.fetchAsync().toCompletableFuture());
+            }
+
+            for (CompletableFuture<Resource> fetch : fetches) {
+                assertThat(fetch.get(10, TimeUnit.SECONDS).getContent().readAllBytes()).isEqualTo(
+                    "content".getBytes(StandardCharsets.UTF_8)
+                );
+            }
+            // Negotiated through ALPN, a server without HTTP/2 would have answered over HTTP/1.1
+            assertThat(https.findAll(getRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file"))))
+                .isNotEmpty()
+                .allSatisfy(request -> assertThat(request.getProtocol()).startsWith("HTTP/2"));
+        } finally {
+            https.stop();
+        }
+    }
+
+    @Test
+    void should_share_a_single_request_between_concurrent_fetches_of_the_same_file() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("content").withFixedDelay(500)));
+
+        List<CompletableFuture<Resource>> fetches = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fetches.add(bitbucketFetcher(10_000).fetchAsync().toCompletableFuture());
+        }
+
+        List<InputStream> contents = new ArrayList<>();
+        for (CompletableFuture<Resource> fetch : fetches) {
+            contents.add(fetch.get(10, TimeUnit.SECONDS).getContent());
+        }
+        assertThat(contents).doesNotHaveDuplicates();
+        for (InputStream content : contents) {
+            assertThat(content.readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        }
+        wiremock.verify(1, getRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    void should_follow_configuration_changes() throws Exception {
+        String src = "/2.0/repositories/MyUserName/MyRepo/src/";
+        wiremock.stubFor(get(urlEqualTo(src + "MyBranch/path/to/file")).willReturn(aResponse().withStatus(200).withBody("branch")));
+        wiremock.stubFor(get(urlEqualTo(src + "MyTag/path/to/file")).willReturn(aResponse().withStatus(200).withBody("tag")));
+
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("branch".getBytes(StandardCharsets.UTF_8));
+
+        BitbucketFetcherConfiguration config = (BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration();
+        config.setBranchOrTag("MyTag");
+        Resource resource = bitbucketFetcher.fetch();
+
+        assertThat(resource.getContent().readAllBytes()).isEqualTo("tag".getBytes(StandardCharsets.UTF_8));
+        assertThat(resource.getMetadata()).extractingByKey(Fetcher.EDIT_URL_PROPERTY_KEY).asString().contains("/src/MyTag/path/to/file");
+
+        config.setFilepath(null);
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class).hasMessageContaining("required configuration");
+    }
+
+    @Test
+    void should_poll_unchanged_files_less_often_in_adaptive_mode() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("content")));
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        BitbucketFetcherConfiguration config = (BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration();
+        config.setAutoFetch(true);
+        config.setFetchCron("0 */10 * * * *");
+        ReflectionTestUtils.setField(bitbucketFetcher, "adaptiveEnabled", true);
+
+        Resource first = bitbucketFetcher.fetch();
+        assertThat(first.getMetadata())
+            .containsEntry(BitbucketFetcher.POLL_INTERVAL_PROPERTY_KEY, 600_000L)
+            .containsEntry(BitbucketFetcher.POLL_REASON_PROPERTY_KEY, "first fetch");
+
+        bitbucketFetcher.fetch();
+        wiremock.verify(1, getRequestedFor(urlEqualTo(url)));
+
+        BitbucketContentCache.shared().clear();
+        Resource unchanged = bitbucketFetcher.fetch();
+        wiremock.verify(2, getRequestedFor(urlEqualTo(url)));
+        assertThat(unchanged.getMetadata()).containsEntry(BitbucketFetcher.POLL_INTERVAL_PROPERTY_KEY, 1_200_000L);
+        assertThat(unchanged.getMetadata())
+            .extractingByKey(BitbucketFetcher.POLL_REASON_PROPERTY_KEY)
+            .asString()
+            .startsWith("unchanged since");
+    }
+
+    @Test
+    void should_describe_the_fetched_content_in_metadata() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody("content")
+            )
+        );
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest("content".getBytes(StandardCharsets.UTF_8)));
+
+        // APIM creates a fetcher for each fetch
+        Resource first = bitbucketFetcher(10_000).fetch();
+        Resource second = bitbucketFetcher(10_000).fetch();
+
+        assertThat(first.getMetadata())
+            .containsEntry(BitbucketFetcher.CONTENT_HASH_PROPERTY_KEY, hash)
+            .containsEntry(BitbucketFetcher.ETAG_PROPERTY_KEY, "\"v1\"")
+            .containsEntry(BitbucketFetcher.UNCHANGED_PROPERTY_KEY, false)
+            .doesNotContainKey(BitbucketFetcher.COMMIT_PROPERTY_KEY);
+        assertThat(second.getMetadata())
+            .containsEntry(BitbucketFetcher.CONTENT_HASH_PROPERTY_KEY, hash)
+            .containsEntry(BitbucketFetcher.UNCHANGED_PROPERTY_KEY, true);
+        // Relative to the content last processed by the caller when it tells which one it was
+        Resource processedElsewhere = bitbucketFetcher(10_000).fetchAsync("other").toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertThat(processedElsewhere.getMetadata()).containsEntry(BitbucketFetcher.UNCHANGED_PROPERTY_KEY, false);
+    }
+
+    @Test
+    void should_stop_requesting_bitbucket_once_the_circuit_is_open() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withHeader("ETag", "\"v1\"").withBody("content")));
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "circuitBreakerEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "circuitBreakerWindowSize", 2);
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(500)));
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class);
+        assertThat(BitbucketCircuitBreaker.shared().state("localhost", "MyUserName")).isEqualTo(BitbucketCircuitBreaker.State.OPEN);
+
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        ReflectionTestUtils.setField(bitbucketFetcher, "circuitBreakerServeStale", false);
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class).hasMessageContaining("circuit");
+        wiremock.verify(2, getRequestedFor(urlEqualTo(url)));
+    }
+
+    @Test
+    void should_serve_the_last_known_content_at_the_last_resolved_commit_once_the_circuit_is_open() throws Exception {
+        String commit = "0123456789abcdef0123456789abcdef01234567";
+        String refs = "/2.0/repositories/MyUserName/MyRepo/refs";
+        wiremock.stubFor(get(urlPathEqualTo(refs)).willReturn(okJson("{\"values\":[{\"target\":{\"hash\":\"" + commit + "\"}}]}")));
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/" + commit + "/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("content")
+            )
+        );
+        BitbucketFetcher bitbucketFetcher = resolvingFetcher();
+        ReflectionTestUtils.setField(bitbucketFetcher, "resolveRefsTtl", 0L);
+        ReflectionTestUtils.setField(bitbucketFetcher, "circuitBreakerEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "circuitBreakerWindowSize", 2);
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+
+        wiremock.stubFor(get(urlPathEqualTo(refs)).willReturn(aResponse().withStatus(500)));
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class);
+        assertThat(BitbucketCircuitBreaker.shared().state("localhost", "MyUserName")).isEqualTo(BitbucketCircuitBreaker.State.OPEN);
+
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        ReflectionTestUtils.setField(bitbucketFetcher, "streamingEnabled", true);
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(2, getRequestedFor(urlPathEqualTo(refs)));
+    }
+
+    @Test
+    void should_decode_compressed_content_within_the_decoded_size_limit() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        String spec = "openapi: 3.0.0\n".repeat(1_000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(spec.getBytes(StandardCharsets.UTF_8));
+        }
+        wiremock.stubFor(
+            get(urlEqualTo(url)).willReturn(
+                aResponse().withStatus(200).withHeader("Content-Encoding", "gzip").withBody(compressed.toByteArray())
+            )
+        );
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "compressionEnabled", true);
+
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo(spec.getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(getRequestedFor(urlEqualTo(url)).withHeader("Accept-Encoding", containing("gzip")));
+
+        ReflectionTestUtils.setField(bitbucketFetcher, "compressionMaxDecodedLength", 1_000L);
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class);
+    }
+
+    @Test
+    void should_abort_a_brotli_body_expanding_past_the_decoded_size_limit() throws Exception {
+        assumeTrue(Brotli.isAvailable());
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        // A few hundred bytes expanding to 64 MB, within a single chunk
+        byte[] bomb = Encoder.compress(new byte[64 * 1024 * 1024]);
+        wiremock.stubFor(
+            get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withHeader("Content-Encoding", "br").withBody(bomb))
+        );
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "compressionEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "compressionMaxDecodedLength", 1_000_000L);
+
+        assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class).hasMessageContaining("exceeds");
+        wiremock.verify(getRequestedFor(urlEqualTo(url)).withHeader("Accept-Encoding", containing("br")));
+    }
+
+    @Test
+    void should_only_download_the_files_changed_since_the_previous_commit() throws Exception {
+        String repository = "/2.0/repositories/MyUserName/MyRepo";
+        String previous = "0123456789abcdef0123456789abcdef01234567";
+        String current = "89abcdef0123456789abcdef0123456789abcdef";
+        for (String commit : List.of(previous, current)) {
+            for (String file : List.of("file", "other")) {
+                wiremock.stubFor(
+                    get(urlEqualTo(repository + "/src/" + commit + "/path/to/" + file)).willReturn(
+                        aResponse().withStatus(200).withBody(file + "@" + commit)
+                    )
+                );
+            }
+        }
+        wiremock.stubFor(
+            get(urlPathEqualTo(repository + "/diffstat/" + current + ".." + previous))
+                .withQueryParam("topic", equalTo("false"))
+                .willReturn(okJson("{\"values\":[{\"old\":{\"path\":\"path/to/other\"},\"new\":{\"path\":\"path/to/other\"}}]}"))
+        );
+
+        for (String commit : List.of(previous, current)) {
+            BitbucketCommitResolver.shared().clear();
+            wiremock.stubFor(
+                get(urlPathEqualTo(repository + "/refs")).willReturn(okJson("{\"values\":[{\"target\":{\"hash\":\"" + commit + "\"}}]}"))
+            );
+            for (String file : List.of("file", "other")) {
+                BitbucketFetcher bitbucketFetcher = resolvingFetcher();
+                ReflectionTestUtils.setField(bitbucketFetcher, "resolveRefsDiffstat", true);
+                ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setFilepath("path/to/" + file);
+                bitbucketFetcher.fetch();
+            }
+        }
+
+        BitbucketFetcher unchanged = resolvingFetcher();
+        ReflectionTestUtils.setField(unchanged, "resolveRefsDiffstat", true);
+        assertThat(unchanged.fetch().getContent().readAllBytes()).isEqualTo(("file@" + previous).getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(0, getRequestedFor(urlEqualTo(repository + "/src/" + current + "/path/to/file")));
+        wiremock.verify(1, getRequestedFor(urlEqualTo(repository + "/src/" + current + "/path/to/other")));
+        wiremock.verify(1, getRequestedFor(urlPathEqualTo(repository + "/diffstat/" + current + ".." + previous)));
+    }
+
+    @Test
+    void should_validate_the_bitbucket_certificate() throws Exception {
+        WireMockServer https = new WireMockServer(wireMockConfig().dynamicPort().dynamicHttpsPort());
+        https.start();
+        try {
+            https.stubFor(
+                get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                    aResponse().withStatus(200).withBody("content")
+                )
+            );
+            BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+            ReflectionTestUtils.setField(bitbucketFetcher, "retryMaxAttempts", 1);
+            ((BitbucketFetcherConfiguration) bitbucketFetcher.getConfiguration()).setBitbucketUrl(
+                "https://localhost:" + https.httpsPort() + "/2.0"
+            );
+
+            // WireMock presents a self-signed certificate, unknown to the trust store of the JVM
+            assertThatThrownBy(bitbucketFetcher::fetch).isInstanceOf(FetcherException.class);
+            https.verify(0, getRequestedFor(anyUrl()));
+
+            ReflectionTestUtils.setField(bitbucketFetcher, "sslTrustAll", true);
+
+            assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            https.stop();
+        }
+    }
+
+    @Test
+    void should_warm_up_connections_to_the_bitbucket_host() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("content")
+            )
+        );
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "warmupConnections", 2);
+        ReflectionTestUtils.setField(bitbucketFetcher, "dnsCacheTtl", 60_000L);
+
+        assertThat(bitbucketFetcher.fetch().getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+
+        await().untilAsserted(() -> wiremock.verify(2, headRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo"))));
+    }
+
+    @Test
+    void should_warm_up_a_recreated_client_again() throws Exception {
+        wiremock.stubFor(
+            get(urlEqualTo("/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file")).willReturn(
+                aResponse().withStatus(200).withBody("content")
+            )
+        );
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "warmupConnections", 1);
+
+        bitbucketFetcher.fetch().getContent().readAllBytes();
+        await().untilAsserted(() -> wiremock.verify(1, headRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo"))));
+        BitbucketHttpClientRegistry.closeAll(testVertx);
+        bitbucketFetcher.fetch().getContent().readAllBytes();
+
+        await().untilAsserted(() -> wiremock.verify(2, headRequestedFor(urlEqualTo("/2.0/repositories/MyUserName/MyRepo"))));
+    }
+
+    @Test
+    void should_move_on_to_the_next_address_of_a_host_when_connecting_fails() throws Exception {
+        InetAddress first = InetAddress.getByAddress("bitbucket.org", new byte[] { 10, 0, 0, 1 });
+        InetAddress second = InetAddress.getByAddress("bitbucket.org", new byte[] { 10, 0, 0, 2 });
+        BitbucketDnsCache dnsCache = new BitbucketDnsCache(host -> new InetAddress[] { first, second });
+
+        assertThat(resolve(dnsCache, 60_000)).isEqualTo(first);
+        dnsCache.unreachable("bitbucket.org", first);
+        assertThat(resolve(dnsCache, 60_000)).isEqualTo(second);
+        // A late failure of the first address does not skip the second one
+        dnsCache.unreachable("bitbucket.org", first);
+        assertThat(resolve(dnsCache, 60_000)).isEqualTo(second);
+        dnsCache.unreachable("bitbucket.org", second);
+        assertThat(resolve(dnsCache, 60_000)).isEqualTo(first);
+    }
+
+    @Test
+    void should_keep_the_addresses_of_a_host_when_resolving_it_again_fails() throws Exception {
+        InetAddress first = InetAddress.getByAddress("bitbucket.org", new byte[] { 10, 0, 0, 1 });
+        InetAddress second = InetAddress.getByAddress("bitbucket.org", new byte[] { 10, 0, 0, 2 });
+        AtomicInteger lookups = new AtomicInteger();
+        BitbucketDnsCache dnsCache = new BitbucketDnsCache(host -> {
+            if (lookups.incrementAndGet() > 1) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] { first, second };
+        });
+
+        assertThat(resolve(dnsCache, 60_000)).isEqualTo(first);
+        dnsCache.unreachable("bitbucket.org", first);
+
+        assertThat(resolve(dnsCache, 0)).isEqualTo(second);
+        assertThat(lookups).hasValue(2);
+    }
+
+    @Test
+    void should_only_skip_the_dns_cache_for_address_literals() throws Exception {
+        ReflectionTestUtils.setField(fetcher, "dnsCacheTtl", 60_000L);
+
+        assertThat(serverAddress("127.0.0.1")).isNull();
+        assertThat(serverAddress("[::1]")).isNull();
+        assertThat(serverAddress("localhost")).isNotNull();
+    }
+
+    private InetAddress resolve(BitbucketDnsCache dnsCache, long ttl) throws Exception {
+        return dnsCache.resolve(vertx, "bitbucket.org", ttl).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private InetAddress serverAddress(String host) throws Exception {
+        BitbucketHttpClientRegistry.Key key = new BitbucketHttpClientRegistry.Key(vertx, "https", host, 443, null, null);
+        Future<InetAddress> address = ReflectionTestUtils.invokeMethod(fetcher, "serverAddress", key);
+        return address.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void should_hedge_a_slow_request() throws Exception {
+        String url = "/2.0/repositories/MyUserName/MyRepo/src/MyBranch/path/to/file";
+        wiremock.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(200).withBody("content")));
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "hedgingEnabled", true);
+        ReflectionTestUtils.setField(bitbucketFetcher, "hedgingBudget", 100);
+        // Learn the response times of the host
+        for (int i = 0; i < 20; i++) {
+            bitbucketFetcher.fetch().getContent().readAllBytes();
+        }
+
+        wiremock.resetAll();
+        wiremock.stubFor(
+            get(urlEqualTo(url))
+                .inScenario("hedging")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(5_000))
+                .willSetStateTo("hedged")
+        );
+        wiremock.stubFor(
+            get(urlEqualTo(url))
+                .inScenario("hedging")
+                .whenScenarioStateIs("hedged")
+                .willReturn(aResponse().withStatus(200).withBody("content"))
+        );
+
+        Resource resource = bitbucketFetcher.fetch();
+
+        // Only the request sent after the slow one is answered with this body: the hedge won
+        assertThat(resource.getContent().readAllBytes()).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        wiremock.verify(2, getRequestedFor(urlEqualTo(url)));
+    }
+
     private BitbucketFetcher bitbucketFetcher(int timeoutMs) {
         BitbucketFetcherConfiguration config = new BitbucketFetcherConfiguration();
         config.setFilepath("path/to/file");
@@ -338,4 +1531,31 @@ class BitbucketFetcherTest {
         ReflectionTestUtils.setField(bitbucketFetcher, "vertx", testVertx);
         return bitbucketFetcher;
     }
+
+    private BitbucketFetcher cachingFetcher() {
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "cacheTtl", 60_000L);
+        return bitbucketFetcher;
+    }
+
+    private static void push(String branch) {
+        JsonObject pushed = new JsonObject().put("type", "branch").put("name", branch);
+        BitbucketPushHandler.handle(
+            new JsonObject()
+                .put("repository", new JsonObject().put("full_name", "myusername/myrepo"))
+                .put("push", new JsonObject().put("changes", new JsonArray().add(new JsonObject().put("new", pushed))))
+        );
+    }
+
+    private BitbucketFetcher pushFetcher() {
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "pushEnabled", true);
+        return bitbucketFetcher;
+    }
+
+    private BitbucketFetcher resolvingFetcher() {
+        BitbucketFetcher bitbucketFetcher = bitbucketFetcher(10_000);
+        ReflectionTestUtils.setField(bitbucketFetcher, "resolveRefsEnabled", true);
+        return bitbucketFetcher;
+    }
 }